@@ -18,23 +18,25 @@
  */
 package parchment.manuscript;
 
+import java.io.BufferedInputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.PrintStream;
+import java.security.DigestInputStream;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
 import java.util.ArrayList;
 import java.util.List;
 
-import nu.xom.Builder;
-import nu.xom.Document;
-import nu.xom.NodeFactory;
 import nu.xom.ParsingException;
 import nu.xom.ValidityException;
-import parchment.quack.QuackConverter;
 import parchment.quack.QuackLoader;
-import parchment.quack.QuackNodeFactory;
+import parchment.quack.QuackWriter;
 import quill.client.ImproperFilenameException;
+import quill.client.Profiler;
 import quill.textbase.ChapterSegment;
 import quill.textbase.Component;
 import quill.textbase.Extract;
@@ -67,6 +69,22 @@ public class Chapter
      */
     private String relative;
 
+    /**
+     * The Component most recently loaded from or saved to disk, along with
+     * the full pathname, modification time, size, and digest of the file as
+     * it was at that point. Used to avoid rewriting a chapter that hasn't
+     * changed, and to notice when someone else has changed the file.
+     */
+    private Component saved;
+
+    private String savedFilename;
+
+    private long savedModified;
+
+    private long savedLength;
+
+    private byte[] savedDigest;
+
     public Chapter(Manuscript manuscript) {
         if (manuscript == null) {
             throw new IllegalArgumentException("Can't use a null Manuscript");
@@ -116,11 +134,14 @@ public class Chapter
     public Component loadDocument() throws ValidityException, ParsingException, IOException {
         final String filename;
         final File source, probe;
-        final NodeFactory factory;
-        final Builder parser;
-        final Document doc;
         final QuackLoader loader; // change to interface or baseclass
-        final Component component;
+        final ChapterCache cache;
+        Component component;
+        Profiler.Mark mark;
+        final long modified, length;
+        final MessageDigest md;
+        final DigestInputStream in;
+        final byte[] digest;
 
         filename = this.getFilename();
 
@@ -139,12 +160,51 @@ public class Chapter
 
         source = new File(filename);
 
-        factory = new QuackNodeFactory();
-        parser = new Builder(factory);
-        doc = parser.build(source);
+        /*
+         * Note the file's state before reading it; if it changes underneath
+         * us while we're parsing, the next save will rewrite it.
+         */
 
-        loader = new QuackLoader();
-        component = loader.process(doc);
+        modified = source.lastModified();
+        length = source.length();
+
+        /*
+         * If the file is as it was when we last parsed it, use what we got
+         * then. Checking that means reading the file for its digest.
+         */
+
+        mark = Profiler.begin();
+        cache = new ChapterCache(source, modified, length);
+        component = cache.load();
+        Profiler.end(mark, "cache", relative);
+
+        if (component != null) {
+            setSaved(component, filename, modified, length, cache.getDigest());
+            return component;
+        }
+
+        /*
+         * The loader processes each block as it is parsed, so the XOM tree
+         * for the whole chapter is never built. The digest is taken as the
+         * file goes through the parser, which reads it to the end to be sure
+         * nothing follows the root element.
+         */
+
+        mark = Profiler.begin();
+        md = ChapterCache.getSha1();
+        in = new DigestInputStream(new BufferedInputStream(new FileInputStream(source), 65536), md);
+        try {
+            loader = new QuackLoader();
+            component = loader.load(in);
+        } finally {
+            in.close();
+        }
+        digest = md.digest();
+        Profiler.end(mark, "parse", relative);
+
+        new ChapterCache(source, modified, length, digest).store(component);
+
+        setSaved(component, filename, modified, length, digest);
 
         return component;
     }
@@ -210,6 +270,10 @@ public class Chapter
         final String filename;
         final File target, tmp;
         final FileOutputStream out;
+        final MessageDigest md;
+        final long modified, length;
+        final byte[] digest;
+        final ChapterCache cache;
         boolean result;
         String dir, path;
 
@@ -244,65 +308,172 @@ public class Chapter
                     + "</tt>\n<i>and try again?</i>");
         }
 
+        md = ChapterCache.getSha1();
+
         try {
             out = new FileOutputStream(tmp);
-            saveDocument(component, out);
+            saveDocument(component, new DigestOutputStream(out, md));
+            out.getFD().sync();
             out.close();
         } catch (IOException ioe) {
             tmp.delete();
             throw ioe;
         }
 
+        digest = md.digest();
+
         /*
-         * And now replace the temp file over the actual document.
+         * And now replace the temp file over the actual document. This and
+         * noting what we saved are done together, so that someone checking
+         * whether the file has been changed doesn't see our own write.
          */
 
-        result = tmp.renameTo(target);
-        if (!result) {
-            tmp.delete();
-            throw new IOException("Unbale to rename temporary file to target document!");
+        synchronized (this) {
+            result = tmp.renameTo(target);
+            if (!result) {
+                tmp.delete();
+                throw new IOException("Unbale to rename temporary file to target document!");
+            }
+
+            modified = target.lastModified();
+            length = target.length();
+
+            setSaved(component, filename, modified, length, digest);
+        }
+
+        /*
+         * What we just wrote is exactly what we'd get by parsing it again, so
+         * the cache can be brought up to date without doing so.
+         */
+
+        cache = new ChapterCache(target, modified, length, digest);
+        cache.store(component);
+    }
+
+    private synchronized void setSaved(final Component component, final String filename,
+            final long modified, final long length, final byte[] digest) {
+        this.saved = component;
+        this.savedFilename = filename;
+        this.savedModified = modified;
+        this.savedLength = length;
+        this.savedDigest = digest;
+    }
+
+    /**
+     * Has the file on disk been changed by something else since this Chapter
+     * was last loaded or saved? A file that has been touched but whose
+     * content is the same (as after a version control checkout that didn't
+     * affect it) doesn't count. Nor does a file that has gone away; that
+     * would be unwise to act on.
+     */
+    public synchronized boolean isChangedOnDisk() throws IOException {
+        final String filename;
+        final File target;
+        final long modified, length;
+        final ChapterCache cache;
+
+        if (saved == null) {
+            return false;
+        }
+
+        filename = this.getFilename();
+        if (!filename.equals(savedFilename)) {
+            return false;
         }
+
+        target = new File(filename);
+        if (!target.exists()) {
+            return false;
+        }
+
+        modified = target.lastModified();
+        length = target.length();
+
+        if ((modified == savedModified) && (length == savedLength)) {
+            return false;
+        }
+
+        cache = new ChapterCache(target, modified, length);
+        if (!MessageDigest.isEqual(cache.getDigest(), savedDigest)) {
+            return true;
+        }
+
+        /*
+         * Same content, so what we have is still what is on disk.
+         */
+
+        this.savedModified = modified;
+        this.savedLength = length;
+
+        return false;
+    }
+
+    /**
+     * Is the given Component what is already on disk for this Chapter? True
+     * if it is the very instance last loaded or saved, and the file hasn't
+     * been moved or touched since. Component is immutable, so any edit to the
+     * chapter will have resulted in a different instance.
+     */
+    public synchronized boolean isSaved(final Component component) {
+        final String filename;
+        final File target;
+
+        if ((component == null) || (component != saved)) {
+            return false;
+        }
+
+        filename = this.getFilename();
+        if (!filename.equals(savedFilename)) {
+            return false;
+        }
+
+        target = new File(filename);
+        if (!target.exists()) {
+            return false;
+        }
+
+        return (target.lastModified() == savedModified) && (target.length() == savedLength);
     }
 
     public void saveDocument(final Component component, final OutputStream out) throws IOException {
-        final QuackConverter converter;
+        final QuackWriter writer;
         Series series;
         Segment segment;
         int i, I;
 
         /*
-         * Create an output converter and run the segments through it to turn
-         * them into DocBook elements.
+         * Create an output writer and run the segments through it, which
+         * emits them as Quack XML as it goes.
          */
 
-        converter = new QuackConverter();
+        writer = new QuackWriter(out);
 
         series = component.getSeriesMain();
         I = series.size();
         for (i = 0; i < I; i++) {
             segment = series.getSegment(i);
-            converter.append(segment);
+            writer.append(segment);
         }
 
         series = component.getSeriesEndnotes();
         I = series.size();
         for (i = 0; i < I; i++) {
             segment = series.getSegment(i);
-            converter.append(segment);
+            writer.append(segment);
         }
 
         series = component.getSeriesReferences();
         I = series.size();
         for (i = 0; i < I; i++) {
             segment = series.getSegment(i);
-            converter.append(segment);
+            writer.append(segment);
         }
 
         /*
-         * Finally, serialize the resultant top level.
+         * Finally, close off the top level.
          */
 
-        converter.writeChapter(out);
+        writer.finish();
     }
 
     /**
@@ -0,0 +1,370 @@
+/*
+ * Quill and Parchment, a WYSIWYN document editor and rendering engine.
+ *
+ * Copyright © 2011 Operational Dynamics Consulting, Pty Ltd
+ *
+ * The code in this file, and the program it is a part of, is made available
+ * to you by its authors as open source software: you can redistribute it
+ * and/or modify it under the terms of the GNU General Public License version
+ * 2 ("GPL") as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GPL for more details.
+ *
+ * You should have received a copy of the GPL along with this program. If not,
+ * see http://www.gnu.org/licenses/. The authors of this program may be
+ * contacted through http://research.operationaldynamics.com/projects/quill/.
+ */
+package parchment.manuscript;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+
+import quill.textbase.Component;
+import quill.textbase.Segment;
+import quill.textbase.Series;
+import quill.textbase.TextArena;
+
+/**
+ * A cache of chapters as loaded, so that opening a document whose files
+ * haven't changed since last time doesn't have to parse any XML.
+ *
+ * <p>
+ * Each chapter file's Component is stored in the compact binary form of
+ * SegmentCodec, in a file in the cache directory named for the chapter's
+ * path. Alongside it are the chapter file's size, modification time, and a
+ * digest of its content; if any of these don't match, or anything at all
+ * goes wrong reading the cache, the chapter is parsed from XML as usual
+ * (and the cache entry rewritten).
+ *
+ * <p>
+ * Caching is off unless a directory has been set.
+ *
+ * @author Andrew Cowie
+ */
+final class ChapterCache
+{
+    private static final int MAGIC = 0x51434348;
+
+    /**
+     * Bump this if the encoding, or what QuackLoader produces from a given
+     * file, changes.
+     */
+    private static final int VERSION = 1;
+
+    private static File directory;
+
+    static synchronized void setDirectory(final File dir) {
+        directory = dir;
+    }
+
+    private static synchronized File getDirectory() {
+        return directory;
+    }
+
+    /**
+     * The user's cache directory, following the XDG base directory
+     * convention.
+     */
+    static File getDefaultDirectory() {
+        String base;
+
+        base = System.getenv("XDG_CACHE_HOME");
+        if ((base == null) || (base.equals(""))) {
+            base = System.getProperty("user.home") + "/.cache";
+        }
+
+        return new File(base + "/quill/chapters");
+    }
+
+    private final File source;
+
+    private final long modified;
+
+    private final long length;
+
+    /**
+     * The cache entry for source, or null if caching is off.
+     */
+    private final File cache;
+
+    private byte[] digest;
+
+    /**
+     * @param modified
+     *            the chapter file's modification time, as of before it was
+     *            (or will be) read.
+     * @param length
+     *            the chapter file's size, ditto.
+     */
+    ChapterCache(final File source, final long modified, final long length) {
+        this(source, modified, length, null);
+    }
+
+    /**
+     * @param digest
+     *            the digest of the chapter file's content, if already known.
+     */
+    ChapterCache(final File source, final long modified, final long length, final byte[] digest) {
+        final File dir;
+
+        this.source = source.getAbsoluteFile();
+        this.modified = modified;
+        this.length = length;
+        this.digest = digest;
+
+        dir = getDirectory();
+        if (dir == null) {
+            this.cache = null;
+        } else {
+            this.cache = new File(dir, toHex(sha1(this.source.getPath().getBytes())) + ".cache");
+        }
+    }
+
+    /**
+     * Get the Component cached for this chapter file, or null if there isn't
+     * one or it's out of date.
+     */
+    Component load() {
+        final FileInputStream in;
+        final FileChannel channel;
+        final MappedByteBuffer buffer;
+        final DataInputStream data;
+        final byte[] stored;
+        final TextArena arena;
+        final Series main, endnotes, references;
+
+        if ((cache == null) || (!cache.exists())) {
+            return null;
+        }
+
+        try {
+            in = new FileInputStream(cache);
+            try {
+                channel = in.getChannel();
+                buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            } finally {
+                in.close();
+            }
+
+            data = new DataInputStream(new BufferInputStream(buffer));
+
+            if ((data.readInt() != MAGIC) || (data.readInt() != VERSION)) {
+                return null;
+            }
+            if (!source.getPath().equals(SegmentCodec.readString(data))) {
+                return null;
+            }
+            if ((data.readLong() != length) || (data.readLong() != modified)) {
+                return null;
+            }
+
+            stored = new byte[20];
+            data.readFully(stored);
+            if (!MessageDigest.isEqual(stored, getDigest())) {
+                return null;
+            }
+
+            arena = new TextArena();
+            main = readSeries(data, arena);
+            endnotes = readSeries(data, arena);
+            references = readSeries(data, arena);
+
+            return new Component(main, endnotes, references);
+        } catch (IOException ioe) {
+            return null;
+        } catch (RuntimeException re) {
+            /*
+             * Corrupt entries can result in all manner of things, from
+             * BufferUnderflowException to Segment constructors complaining.
+             */
+            return null;
+        }
+    }
+
+    /**
+     * Record the Component that was parsed from this chapter file. Problems
+     * are ignored; it's only a cache.
+     */
+    void store(final Component component) {
+        final File tmp;
+        final DataOutputStream data;
+
+        if (cache == null) {
+            return;
+        }
+
+        tmp = new File(cache.getPath() + ".tmp");
+
+        try {
+            cache.getParentFile().mkdirs();
+
+            data = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 65536));
+            try {
+                data.writeInt(MAGIC);
+                data.writeInt(VERSION);
+                SegmentCodec.writeString(data, source.getPath());
+                data.writeLong(length);
+                data.writeLong(modified);
+                data.write(getDigest());
+
+                writeSeries(data, component.getSeriesMain());
+                writeSeries(data, component.getSeriesEndnotes());
+                writeSeries(data, component.getSeriesReferences());
+            } finally {
+                data.close();
+            }
+
+            if (!tmp.renameTo(cache)) {
+                tmp.delete();
+            }
+        } catch (IOException ioe) {
+            tmp.delete();
+        }
+    }
+
+    private static void writeSeries(final DataOutputStream data, final Series series) throws IOException {
+        final int num;
+        int i;
+
+        num = series.size();
+        data.writeInt(num);
+
+        for (i = 0; i < num; i++) {
+            SegmentCodec.writeSegment(data, series.getSegment(i));
+        }
+    }
+
+    private static Series readSeries(final DataInput data, final TextArena arena) throws IOException {
+        final int num;
+        final List<Segment> list;
+        int i;
+
+        num = data.readInt();
+        if (num < 0) {
+            throw new IOException("Invalid number of segments");
+        }
+
+        list = new ArrayList<Segment>(num);
+
+        for (i = 0; i < num; i++) {
+            list.add(SegmentCodec.readSegment(data, arena));
+        }
+
+        return new Series(list);
+    }
+
+    /**
+     * Digest of the chapter file's content. Computed on first use.
+     */
+    /*
+     * Read rather than memory mapped: the file isn't ours, and if something
+     * truncates it while it is mapped the VM gets SIGBUS, surfacing as an
+     * InternalError that nobody is expecting.
+     */
+    byte[] getDigest() throws IOException {
+        final DigestInputStream in;
+        final MessageDigest md;
+        final byte[] buf;
+
+        if (digest != null) {
+            return digest;
+        }
+
+        md = getSha1();
+        buf = new byte[65536];
+
+        in = new DigestInputStream(new FileInputStream(source), md);
+        try {
+            while (in.read(buf) != -1) {
+                // digested as read
+            }
+        } finally {
+            in.close();
+        }
+
+        digest = md.digest();
+        return digest;
+    }
+
+    static MessageDigest getSha1() {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException nsae) {
+            throw new Error("How can there be no SHA-1 algorithm?");
+        }
+    }
+
+    private static byte[] sha1(final byte[] bytes) {
+        final MessageDigest md;
+
+        md = getSha1();
+        md.update(bytes);
+
+        return md.digest();
+    }
+
+    private static String toHex(final byte[] bytes) {
+        final StringBuilder str;
+
+        str = new StringBuilder(bytes.length * 2);
+
+        for (byte b : bytes) {
+            str.append(Character.forDigit((b >> 4) & 0xF, 16));
+            str.append(Character.forDigit(b & 0xF, 16));
+        }
+
+        return str.toString();
+    }
+
+    /**
+     * Read from a [memory mapped] ByteBuffer as a stream.
+     */
+    private static class BufferInputStream extends InputStream
+    {
+        private final ByteBuffer buffer;
+
+        private BufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        public int read() {
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            return buffer.get() & 0xFF;
+        }
+
+        public int read(byte[] b, int off, int len) {
+            final int num;
+
+            if (len == 0) {
+                return 0;
+            }
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+
+            num = Math.min(len, buffer.remaining());
+            buffer.get(b, off, num);
+
+            return num;
+        }
+    }
+}
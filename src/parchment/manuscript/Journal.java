@@ -0,0 +1,936 @@
+/*
+ * Quill and Parchment, a WYSIWYN document editor and rendering engine.
+ *
+ * Copyright © 2011 Operational Dynamics Consulting, Pty Ltd
+ *
+ * The code in this file, and the program it is a part of, is made available
+ * to you by its authors as open source software: you can redistribute it
+ * and/or modify it under the terms of the GNU General Public License version
+ * 2 ("GPL") as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GPL for more details.
+ *
+ * You should have received a copy of the GPL along with this program. If not,
+ * see http://www.gnu.org/licenses/. The authors of this program may be
+ * contacted through http://research.operationaldynamics.com/projects/quill/.
+ */
+package parchment.manuscript;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import nu.xom.Builder;
+import nu.xom.Document;
+import nu.xom.ParsingException;
+import quill.textbase.Component;
+import quill.textbase.Extract;
+import quill.textbase.Folio;
+import quill.textbase.MarkerSpan;
+import quill.textbase.Markup;
+import quill.textbase.Segment;
+import quill.textbase.Series;
+import quill.textbase.Span;
+import quill.textbase.SpanVisitor;
+import quill.textbase.TextChain;
+
+/**
+ * An append-only record of the changes made to a document since it was last
+ * saved, kept alongside the .parchment file so that work can be recovered if
+ * the program dies before the user saves.
+ *
+ * <p>
+ * Each time the document changes the new Folio is compared with the previous
+ * one. Since unchanged Components, Series, and Segments are shared between
+ * successive Folios, finding what changed is cheap. An edit within a Segment
+ * is recorded as the offset, the number of characters removed, and the text
+ * and markup inserted; anything else is recorded as the range of Segments
+ * replaced and their replacements.
+ *
+ * <p>
+ * Records are written to disk by a background thread, and synced every
+ * couple of seconds. Each is framed with its length and a checksum so that a
+ * record only partly written when the program died is ignored on replay.
+ *
+ * @author Andrew Cowie
+ */
+/*
+ * The first record is a header giving the time the journal was started. If
+ * any of the document's files are newer than that, then the journal is
+ * describing changes to something other than what is on disk, and is not
+ * replayed.
+ */
+final class Journal
+{
+    private static final byte HEADER = 0;
+
+    private static final byte TEXT = 1;
+
+    private static final byte SEGMENTS = 2;
+
+    private static final byte MANUSCRIPT = 3;
+
+    private static final byte MAIN = 0;
+
+    private static final byte ENDNOTES = 1;
+
+    private static final byte REFERENCES = 2;
+
+    /**
+     * How long, in milliseconds, written records can go without being synced
+     * to disk.
+     */
+    private static final long INTERVAL = 2000;
+
+    /**
+     * The file the journal is being written to.
+     */
+    private File target;
+
+    /**
+     * The state of the document as of the most recent record.
+     */
+    private Folio current;
+
+    /**
+     * The state of the document that is on disk, which the journal is
+     * describing changes from.
+     */
+    private Folio base;
+
+    /**
+     * Records waiting to be written by the thread.
+     */
+    private final LinkedList<Entry> queue;
+
+    private Thread thread;
+
+    /**
+     * Is the thread in the middle of writing?
+     */
+    private boolean busy;
+
+    /**
+     * Has something been written that hasn't been synced yet?
+     */
+    private boolean dirty;
+
+    /**
+     * When the journal was last synced.
+     */
+    private long synced;
+
+    /**
+     * Has someone asked that everything be written and synced now?
+     */
+    private boolean urgent;
+
+    private boolean closed;
+
+    /**
+     * Did writing fail? If so we give up journaling.
+     */
+    private boolean broken;
+
+    /**
+     * Owned by the thread.
+     */
+    private FileOutputStream out;
+
+    private File written;
+
+    Journal(final File target) {
+        this.target = target;
+        this.queue = new LinkedList<Entry>();
+    }
+
+    /**
+     * Begin a new journal, replacing whatever is in the file, describing
+     * changes from the given state.
+     */
+    synchronized void start(final Folio folio) {
+        if (closed) {
+            return;
+        }
+
+        current = folio;
+        base = folio;
+
+        enqueue(new Entry(target, null));
+        enqueue(new Entry(null, encodeHeader()));
+    }
+
+    /**
+     * Record the change (if any) from the previously recorded state to the
+     * given one.
+     */
+    synchronized void record(final Folio folio) {
+        if (closed || broken) {
+            return;
+        }
+
+        compare(current, folio);
+        current = folio;
+    }
+
+    /**
+     * The document has been saved as the given state, to the files alongside
+     * the specified journal file. Start the journal over, recording whatever
+     * has changed since that state was handed to be saved.
+     */
+    synchronized void reset(final Folio saved, final File replacement) {
+        if (closed || broken) {
+            return;
+        }
+
+        target = replacement;
+        base = saved;
+
+        enqueue(new Entry(target, null));
+        enqueue(new Entry(null, encodeHeader()));
+
+        compare(saved, current);
+    }
+
+    /**
+     * The chapter at index was changed on disk by something else, and the
+     * given Component loaded from it. Start the journal over, recording
+     * whatever differs from what is now on disk; otherwise the chapter file
+     * being newer than the header would have the whole journal ignored.
+     */
+    synchronized void reload(final int index, final Component component) {
+        if (closed || broken) {
+            return;
+        }
+
+        base = base.update(index, component);
+
+        enqueue(new Entry(target, null));
+        enqueue(new Entry(null, encodeHeader()));
+
+        compare(base, current);
+    }
+
+    /**
+     * Block until everything recorded has been written and synced.
+     */
+    synchronized void flush() {
+        urgent = true;
+        this.notifyAll();
+
+        while ((thread != null) && (!queue.isEmpty() || busy || dirty)) {
+            try {
+                this.wait();
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+
+        urgent = false;
+    }
+
+    /**
+     * Stop journaling and remove the file. Call this once the document has
+     * been closed, either having been saved or with the user having chosen
+     * to discard their changes.
+     */
+    void close() {
+        final File file;
+
+        synchronized (this) {
+            closed = true;
+            this.notifyAll();
+
+            while (thread != null) {
+                try {
+                    this.wait();
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+
+            file = target;
+        }
+
+        file.delete();
+    }
+
+    private void enqueue(final Entry entry) {
+        queue.add(entry);
+
+        if (thread == null) {
+            thread = new Thread("JournalWriter") {
+                public void run() {
+                    loop();
+                }
+            };
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        this.notifyAll();
+    }
+
+    private void loop() {
+        Entry entry;
+        long now;
+        boolean wrote, flushed;
+
+        while (true) {
+            synchronized (this) {
+                while (true) {
+                    if (!queue.isEmpty()) {
+                        entry = queue.removeFirst();
+                        break;
+                    }
+
+                    now = System.currentTimeMillis();
+
+                    if (dirty && (urgent || closed || (now - synced >= INTERVAL))) {
+                        entry = null;
+                        break;
+                    }
+
+                    if (closed) {
+                        closeStream();
+                        thread = null;
+                        this.notifyAll();
+                        return;
+                    }
+
+                    try {
+                        if (dirty) {
+                            this.wait(INTERVAL - (now - synced));
+                        } else {
+                            this.wait();
+                        }
+                    } catch (InterruptedException ie) {
+                        // keep going
+                    }
+                }
+                busy = true;
+            }
+
+            wrote = false;
+            flushed = false;
+
+            try {
+                if (entry == null) {
+                    out.getFD().sync();
+                    flushed = true;
+                } else if (entry.truncate != null) {
+                    closeStream();
+                    if ((written != null) && !written.equals(entry.truncate)) {
+                        written.delete();
+                    }
+                    out = new FileOutputStream(entry.truncate, false);
+                    written = entry.truncate;
+                    wrote = true;
+                } else {
+                    out.write(entry.data);
+                    wrote = true;
+                }
+            } catch (IOException ioe) {
+                System.err.println("WARNING: " + "Unable to write journal, giving up on it" + "\n"
+                        + ioe.getMessage());
+                synchronized (this) {
+                    broken = true;
+                    queue.clear();
+                    closeStream();
+                }
+                wrote = false;
+                flushed = true;
+            }
+
+            synchronized (this) {
+                busy = false;
+                if (wrote) {
+                    dirty = true;
+                }
+                if (flushed) {
+                    dirty = false;
+                    synced = System.currentTimeMillis();
+                }
+                this.notifyAll();
+            }
+        }
+    }
+
+    private void closeStream() {
+        if (out == null) {
+            return;
+        }
+        try {
+            out.close();
+        } catch (IOException ioe) {
+            // nothing more we can do
+        }
+        out = null;
+    }
+
+    /*
+     * Working out what changed.
+     */
+
+    private void compare(final Folio before, final Folio after) {
+        final int I;
+        int i;
+        Component one, two;
+
+        if (before == after) {
+            return;
+        }
+
+        try {
+            if ((before.getStylesheet() != after.getStylesheet())
+                    || (before.getMetadata() != after.getMetadata())) {
+                enqueue(new Entry(null, encodeManuscript(after)));
+            }
+
+            I = Math.min(before.size(), after.size());
+
+            for (i = 0; i < I; i++) {
+                one = before.getComponent(i);
+                two = after.getComponent(i);
+                if (one == two) {
+                    continue;
+                }
+
+                compare(i, MAIN, one.getSeriesMain(), two.getSeriesMain());
+                compare(i, ENDNOTES, one.getSeriesEndnotes(), two.getSeriesEndnotes());
+                compare(i, REFERENCES, one.getSeriesReferences(), two.getSeriesReferences());
+            }
+        } catch (IOException ioe) {
+            throw new AssertionError(ioe);
+        }
+    }
+
+    private void compare(final int index, final byte which, final Series before, final Series after)
+            throws IOException {
+        final int A, B, removed, inserted;
+        int p, s;
+        byte[] data;
+
+        if (before == after) {
+            return;
+        }
+
+        A = before.size();
+        B = after.size();
+
+        p = 0;
+        while ((p < A) && (p < B) && (before.getSegment(p) == after.getSegment(p))) {
+            p++;
+        }
+
+        s = 0;
+        while ((s < A - p) && (s < B - p) && (before.getSegment(A - 1 - s) == after.getSegment(B - 1 - s))) {
+            s++;
+        }
+
+        removed = A - p - s;
+        inserted = B - p - s;
+
+        if ((removed == 0) && (inserted == 0)) {
+            return;
+        }
+
+        if ((removed == 1) && (inserted == 1)) {
+            data = encodeText(index, which, p, before.getSegment(p), after.getSegment(p));
+            if (data != null) {
+                enqueue(new Entry(null, data));
+                return;
+            }
+        }
+
+        data = encodeSegments(index, which, p, removed, after, inserted);
+        enqueue(new Entry(null, data));
+    }
+
+    /*
+     * Encoding records.
+     */
+
+    private static byte[] encodeHeader() {
+        final ByteArrayOutputStream bytes;
+        final DataOutputStream data;
+
+        try {
+            bytes = new ByteArrayOutputStream(16);
+            data = new DataOutputStream(bytes);
+
+            data.writeByte(HEADER);
+            data.writeLong(System.currentTimeMillis());
+
+            return frame(bytes.toByteArray());
+        } catch (IOException ioe) {
+            throw new AssertionError(ioe);
+        }
+    }
+
+    private static byte[] encodeManuscript(final Folio folio) throws IOException {
+        final ByteArrayOutputStream bytes, xml;
+        final DataOutputStream data;
+        final ManuscriptConverter converter;
+
+        xml = new ByteArrayOutputStream(1024);
+        converter = new ManuscriptConverter(folio);
+        converter.writeManuscript(xml);
+
+        bytes = new ByteArrayOutputStream(xml.size() + 8);
+        data = new DataOutputStream(bytes);
+
+        data.writeByte(MANUSCRIPT);
+        data.writeInt(xml.size());
+        xml.writeTo(data);
+
+        return frame(bytes.toByteArray());
+    }
+
+    /**
+     * Describe the change from one Segment to another as a single textual
+     * change, if they are of the same kind. Returns null if they aren't.
+     */
+    /*
+     * We don't trust the offset, removed, and inserted cached in the new
+     * Segment; after an undo they describe some other change entirely. So
+     * work out the common leading and trailing text ourselves.
+     */
+    private static byte[] encodeText(final int index, final byte which, final int position,
+            final Segment before, final Segment after) throws IOException {
+        final Flattened one, two;
+        final int removed, inserted;
+        final Extract extract;
+        final ByteArrayOutputStream bytes;
+        final DataOutputStream data;
+        int p, s;
+
+        if (before.getClass() != after.getClass()) {
+            return null;
+        }
+        if (!equal(before.getExtra(), after.getExtra())) {
+            return null;
+        }
+
+        one = new Flattened(before.getEntire());
+        two = new Flattened(after.getEntire());
+
+        p = 0;
+        while ((p < one.width) && (p < two.width) && one.same(p, two, p)) {
+            p++;
+        }
+
+        s = 0;
+        while ((s < one.width - p) && (s < two.width - p)
+                && one.same(one.width - 1 - s, two, two.width - 1 - s)) {
+            s++;
+        }
+
+        removed = one.width - p - s;
+        inserted = two.width - p - s;
+
+        if (inserted > 0) {
+            extract = new TextChain(after.getEntire()).extractRange(p, inserted);
+        } else {
+            extract = null;
+        }
+
+        bytes = new ByteArrayOutputStream(64);
+        data = new DataOutputStream(bytes);
+
+        data.writeByte(TEXT);
+        data.writeInt(index);
+        data.writeByte(which);
+        data.writeInt(position);
+        data.writeInt(p);
+        data.writeInt(removed);
+        SegmentCodec.writeSpans(data, extract);
+
+        return frame(bytes.toByteArray());
+    }
+
+    private static byte[] encodeSegments(final int index, final byte which, final int position,
+            final int removed, final Series after, final int inserted) throws IOException {
+        final ByteArrayOutputStream bytes;
+        final DataOutputStream data;
+        Segment segment;
+        int i;
+
+        bytes = new ByteArrayOutputStream(256);
+        data = new DataOutputStream(bytes);
+
+        data.writeByte(SEGMENTS);
+        data.writeInt(index);
+        data.writeByte(which);
+        data.writeInt(position);
+        data.writeInt(removed);
+        data.writeInt(inserted);
+
+        for (i = 0; i < inserted; i++) {
+            segment = after.getSegment(position + i);
+            SegmentCodec.writeSegment(data, segment);
+        }
+
+        return frame(bytes.toByteArray());
+    }
+
+    /**
+     * Prefix the record with its length and checksum.
+     */
+    private static byte[] frame(final byte[] payload) throws IOException {
+        final CRC32 crc;
+        final ByteArrayOutputStream bytes;
+        final DataOutputStream data;
+
+        crc = new CRC32();
+        crc.update(payload);
+
+        bytes = new ByteArrayOutputStream(payload.length + 8);
+        data = new DataOutputStream(bytes);
+
+        data.writeInt(payload.length);
+        data.writeInt((int) crc.getValue());
+        data.write(payload);
+
+        return bytes.toByteArray();
+    }
+
+    /*
+     * Replaying.
+     */
+
+    /**
+     * Apply the changes recorded in the given journal to the Folio, as loaded
+     * from disk. If the journal is empty, or is older than the files it
+     * pertains to, you get the original Folio back.
+     */
+    static Folio replay(final File source, final Folio folio) throws IOException {
+        final DataInputStream in;
+        byte[] payload;
+        DataInputStream record;
+        Folio result;
+
+        in = new DataInputStream(new BufferedInputStream(new FileInputStream(source)));
+
+        try {
+            payload = readFrame(in);
+            if (payload == null) {
+                return folio;
+            }
+
+            record = new DataInputStream(new ByteArrayInputStream(payload));
+            if (record.readByte() != HEADER) {
+                throw new IOException("Journal doesn't start with a header");
+            }
+
+            if (isStale(folio, record.readLong())) {
+                System.err.println("WARNING: " + "Ignoring journal older than the document," + "\n"
+                        + source.getPath());
+                return folio;
+            }
+
+            result = folio;
+
+            payload = readFrame(in);
+            while (payload != null) {
+                result = apply(result, payload);
+                payload = readFrame(in);
+            }
+
+            return result;
+        } finally {
+            in.close();
+        }
+    }
+
+    private static boolean isStale(final Folio folio, final long started) {
+        final Manuscript manuscript;
+        int i;
+
+        manuscript = folio.getManuscript();
+        if (new File(manuscript.getFilename()).lastModified() > started) {
+            return true;
+        }
+
+        for (i = 0; i < folio.size(); i++) {
+            if (new File(folio.getChapter(i).getFilename()).lastModified() > started) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Read the next record. Returns null at the end of the file, or if the
+     * record is incomplete or damaged; either way that's the last of it.
+     */
+    private static byte[] readFrame(final DataInputStream in) throws IOException {
+        final int length, checksum;
+        final byte[] payload;
+        final CRC32 crc;
+
+        try {
+            length = in.readInt();
+            checksum = in.readInt();
+
+            if ((length < 0) || (length > 64 * 1024 * 1024)) {
+                return null;
+            }
+
+            payload = new byte[length];
+            in.readFully(payload);
+        } catch (EOFException eofe) {
+            return null;
+        }
+
+        crc = new CRC32();
+        crc.update(payload);
+        if ((int) crc.getValue() != checksum) {
+            return null;
+        }
+
+        return payload;
+    }
+
+    private static Folio apply(final Folio folio, final byte[] payload) throws IOException {
+        final DataInputStream data;
+        final byte kind;
+
+        data = new DataInputStream(new ByteArrayInputStream(payload));
+        kind = data.readByte();
+
+        if (kind == TEXT) {
+            return applyText(folio, data);
+        } else if (kind == SEGMENTS) {
+            return applySegments(folio, data);
+        } else if (kind == MANUSCRIPT) {
+            return applyManuscript(folio, data);
+        } else {
+            throw new IOException("Unknown journal record " + kind);
+        }
+    }
+
+    private static Folio applyText(final Folio folio, final DataInputStream data) throws IOException {
+        final int index, position, offset, removed, inserted;
+        final byte which;
+        final Extract extract;
+        final Component component;
+        final Series series;
+        final Segment before, after;
+        final TextChain chain;
+
+        index = data.readInt();
+        which = data.readByte();
+        position = data.readInt();
+        offset = data.readInt();
+        removed = data.readInt();
+        extract = SegmentCodec.readSpans(data, null);
+
+        component = getComponent(folio, index);
+        series = getSeries(component, which);
+        if ((position < 0) || (position >= series.size())) {
+            throw new IOException("Journal doesn't match document");
+        }
+
+        before = series.getSegment(position);
+        if ((offset < 0) || (removed < 0) || (offset + removed > before.getEntire().getWidth())) {
+            throw new IOException("Journal doesn't match document");
+        }
+
+        chain = new TextChain(before.getEntire());
+
+        if (removed > 0) {
+            chain.delete(offset, removed);
+        }
+
+        if (extract != null) {
+            inserted = extract.getWidth();
+            chain.insert(offset, extract);
+        } else {
+            inserted = 0;
+        }
+
+        after = before.createSimilar(chain.extractAll(), offset, removed, inserted);
+
+        return update(folio, index, component, which, series.update(position, after));
+    }
+
+    private static Folio applySegments(final Folio folio, final DataInputStream data) throws IOException {
+        final int index, position, removed, inserted;
+        final byte which;
+        final Component component;
+        final Series series;
+        final List<Segment> list;
+        int i;
+
+        index = data.readInt();
+        which = data.readByte();
+        position = data.readInt();
+        removed = data.readInt();
+        inserted = data.readInt();
+
+        component = getComponent(folio, index);
+        series = getSeries(component, which);
+        if ((position < 0) || (removed < 0) || (inserted < 0) || (position + removed > series.size())) {
+            throw new IOException("Journal doesn't match document");
+        }
+
+        list = new ArrayList<Segment>(series.size() - removed + inserted);
+
+        for (i = 0; i < position; i++) {
+            list.add(series.getSegment(i));
+        }
+
+        for (i = 0; i < inserted; i++) {
+            list.add(SegmentCodec.readSegment(data, null));
+        }
+
+        for (i = position + removed; i < series.size(); i++) {
+            list.add(series.getSegment(i));
+        }
+
+        return update(folio, index, component, which, new Series(list));
+    }
+
+    private static Folio applyManuscript(final Folio folio, final DataInputStream data) throws IOException {
+        final byte[] xml;
+        final Builder parser;
+        final Document doc;
+        final ManuscriptLoader loader;
+
+        xml = new byte[data.readInt()];
+        data.readFully(xml);
+
+        try {
+            parser = new Builder();
+            doc = parser.build(new ByteArrayInputStream(xml));
+            loader = new ManuscriptLoader(doc);
+        } catch (ParsingException pe) {
+            throw new IOException("Journal has an invalid manuscript record: " + pe.getMessage());
+        } catch (InvalidDocumentException ide) {
+            throw new IOException("Journal has an invalid manuscript record: " + ide.getMessage());
+        }
+
+        return folio.update(loader.getPresentationStylesheet()).update(loader.getMetadataDetails());
+    }
+
+    private static Component getComponent(final Folio folio, final int index) throws IOException {
+        if ((index < 0) || (index >= folio.size())) {
+            throw new IOException("Journal doesn't match document");
+        }
+        return folio.getComponent(index);
+    }
+
+    private static Series getSeries(final Component component, final byte which) throws IOException {
+        if (which == MAIN) {
+            return component.getSeriesMain();
+        } else if (which == ENDNOTES) {
+            return component.getSeriesEndnotes();
+        } else if (which == REFERENCES) {
+            return component.getSeriesReferences();
+        } else {
+            throw new IOException("Unknown series " + which);
+        }
+    }
+
+    private static Folio update(final Folio folio, final int index, final Component component,
+            final byte which, final Series series) {
+        final Component replacement;
+
+        if (which == MAIN) {
+            replacement = component.updateMain(series);
+        } else if (which == ENDNOTES) {
+            replacement = component.updateEndnotes(series);
+        } else {
+            replacement = component.updateReferences(series);
+        }
+
+        return folio.update(index, replacement);
+    }
+
+    private static boolean equal(final String one, final String two) {
+        if (one == null) {
+            return two == null;
+        }
+        return one.equals(two);
+    }
+
+    /**
+     * Something for the writer thread to do: either start over with the
+     * given file, or write the given bytes.
+     */
+    private static class Entry
+    {
+        private final File truncate;
+
+        private final byte[] data;
+
+        private Entry(File truncate, byte[] data) {
+            this.truncate = truncate;
+            this.data = data;
+        }
+    }
+
+    /**
+     * The characters of an Extract laid out flat, along with their Markup
+     * and, for markers, their reference, so they can be compared one by one.
+     */
+    private static class Flattened
+    {
+        private final int width;
+
+        private final int[] characters;
+
+        private final Markup[] markup;
+
+        private final String[] references;
+
+        private Flattened(final Extract extract) {
+            width = extract.getWidth();
+            characters = new int[width];
+            markup = new Markup[width];
+            references = new String[width];
+
+            extract.visit(new SpanVisitor() {
+                private int i = 0;
+
+                public boolean visit(Span span) {
+                    final int w;
+                    int j;
+
+                    w = span.getWidth();
+                    for (j = 0; j < w; j++) {
+                        characters[i] = span.getChar(j);
+                        markup[i] = span.getMarkup();
+                        if (span instanceof MarkerSpan) {
+                            references[i] = span.getText();
+                        }
+                        i++;
+                    }
+                    return false;
+                }
+            });
+        }
+
+        private boolean same(final int i, final Flattened other, final int j) {
+            return (characters[i] == other.characters[j]) && (markup[i] == other.markup[j])
+                    && equal(references[i], other.references[j]);
+        }
+    }
+}
@@ -25,6 +25,12 @@ import java.io.IOException;
 import java.io.PrintStream;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
 import nu.xom.Builder;
 import nu.xom.Document;
@@ -56,6 +62,35 @@ public class Manuscript
 
     private String filename;
 
+    /**
+     * What the .parchment file on disk was last loaded from or saved as: the
+     * Stylesheet and Metadata instances, the chapter filenames, and the
+     * file's full pathname, modification time, and size at that point. Used
+     * to avoid rewriting the .parchment file when it hasn't changed.
+     */
+    private Stylesheet savedStyle;
+
+    private Metadata savedMeta;
+
+    private String[] savedSources;
+
+    private String savedFilename;
+
+    private long savedModified;
+
+    private long savedLength;
+
+    /**
+     * The record of changes made since the document was last saved, if one
+     * is being kept.
+     */
+    private volatile Journal journal;
+
+    /**
+     * Did checkFilename() find a journal left behind by a previous session?
+     */
+    private boolean journalled;
+
     /**
      * Create a new Manuscript intermediary.
      */
@@ -79,6 +114,22 @@ public class Manuscript
      */
     public Folio loadDocument() throws ValidityException, ParsingException, IOException,
             ImproperFilenameException, InvalidDocumentException {
+        return loadDocument(true);
+    }
+
+    /**
+     * Load the document, reading its chapters one after another on the
+     * calling thread rather than in parallel. Use this if the caller is
+     * already one of a number of threads each loading a document, so that
+     * chapter loading threads aren't piled on top of them.
+     */
+    public Folio loadDocumentSerially() throws ValidityException, ParsingException, IOException,
+            ImproperFilenameException, InvalidDocumentException {
+        return loadDocument(false);
+    }
+
+    private Folio loadDocument(final boolean parallel) throws ValidityException, ParsingException,
+            IOException, ImproperFilenameException, InvalidDocumentException {
         final File source;
         final Builder parser;
         final Document doc;
@@ -86,18 +137,22 @@ public class Manuscript
         final int size;
         String[] sources;
         int i;
-        Component component;
         Chapter chapter;
+        ImproperFilenameException improper;
         final List<Component> components;
         final List<Chapter> chapters;
         final Stylesheet style;
         final Metadata meta;
         final Folio folio;
+        final long modified, length;
 
         components = new ArrayList<Component>();
         chapters = new ArrayList<Chapter>();
 
         source = new File(filename);
+        modified = source.lastModified();
+        length = source.length();
+
         parser = new Builder();
         doc = parser.build(source);
 
@@ -109,6 +164,7 @@ public class Manuscript
          * Otherwise, we use List.
          */
         size = sources.length;
+        improper = null;
 
         for (i = 0; i < size; i++) {
             /*
@@ -123,21 +179,142 @@ public class Manuscript
              */
 
             chapter = new Chapter(this);
-            chapter.setFilename(sources[i]);
-
-            component = chapter.loadDocument();
+            try {
+                chapter.setFilename(sources[i]);
+            } catch (ImproperFilenameException ife) {
+                improper = ife;
+                break;
+            }
 
-            // Hm?
             chapters.add(chapter);
-            components.add(component);
         }
 
+        loadChapters(chapters, components, improper, parallel);
+
         style = loader.getPresentationStylesheet();
         meta = loader.getMetadataDetails();
         folio = new Folio(this, chapters, components, style, meta);
+
+        setSaved(folio, modified, length);
+
         return folio;
     }
 
+    /**
+     * Keep a cache of parsed chapters in the user's cache directory, so that
+     * documents whose files haven't changed can be reopened without parsing
+     * them again. Off by default; programs opt in at startup.
+     */
+    public static void enableChapterCache() {
+        ChapterCache.setDirectory(ChapterCache.getDefaultDirectory());
+    }
+
+    /**
+     * Threads used to load Chapters, shared by all Manuscripts. They're
+     * daemons, so that an idle pool won't prevent the program from exiting.
+     */
+    private static ExecutorService pool;
+
+    private static synchronized ExecutorService getPool() {
+        final int threads;
+
+        if (pool == null) {
+            threads = Runtime.getRuntime().availableProcessors();
+            pool = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    final Thread thread;
+
+                    thread = new Thread(r, "ChapterLoader");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+
+        return pool;
+    }
+
+    private static Future<Component> submitChapter(final Chapter chapter) {
+        return getPool().submit(new Callable<Component>() {
+            public Component call() throws Exception {
+                return chapter.loadDocument();
+            }
+        });
+    }
+
+    /**
+     * Load the given Chapters, in parallel, adding their Components in the
+     * same order. If a Chapter fails to load, the exception is thrown just
+     * as if they had been loaded one after another: that is, the first
+     * failure in document order wins. If setting the filename of a
+     * subsequent Chapter failed, pass that exception in as improper;
+     * it will be thrown if all the chapters before it loaded. If parallel is
+     * false they are simply loaded one after another on this thread.
+     */
+    /*
+     * Each Chapter is an independent file producing an immutable Component,
+     * so there's nothing shared between the jobs.
+     */
+    private static void loadChapters(final List<Chapter> chapters, final List<Component> components,
+            final ImproperFilenameException improper, final boolean parallel) throws ValidityException,
+            ParsingException, IOException, ImproperFilenameException {
+        final int num;
+        final List<Future<Component>> results;
+        Throwable cause;
+
+        num = chapters.size();
+
+        if ((num < 2) || !parallel) {
+            for (Chapter chapter : chapters) {
+                components.add(chapter.loadDocument());
+            }
+            if (improper != null) {
+                throw improper;
+            }
+            return;
+        }
+
+        results = new ArrayList<Future<Component>>(num);
+
+        try {
+            for (Chapter chapter : chapters) {
+                results.add(submitChapter(chapter));
+            }
+
+            for (Future<Component> result : results) {
+                try {
+                    components.add(result.get());
+                } catch (InterruptedException ie) {
+                    throw new IOException("Interrupted while loading chapters");
+                } catch (ExecutionException ee) {
+                    cause = ee.getCause();
+
+                    if (cause instanceof ValidityException) {
+                        throw (ValidityException) cause;
+                    } else if (cause instanceof ParsingException) {
+                        throw (ParsingException) cause;
+                    } else if (cause instanceof IOException) {
+                        throw (IOException) cause;
+                    } else if (cause instanceof RuntimeException) {
+                        throw (RuntimeException) cause;
+                    } else if (cause instanceof Error) {
+                        throw (Error) cause;
+                    } else {
+                        throw new AssertionError(cause);
+                    }
+                }
+            }
+        } finally {
+            for (Future<Component> result : results) {
+                result.cancel(true);
+            }
+        }
+
+        if (improper != null) {
+            throw improper;
+        }
+    }
+
     /**
      * Get the full (absolute) pathname of the target document.
      */
@@ -199,7 +376,9 @@ public class Manuscript
     /**
      * Find out if the given filename exists, is a loadable document, and
      * check to make sure there isn't a RESCUED file lurking. Throws
-     * RecoveryFileExistsException if one does.
+     * RecoveryFileExistsException if one does. Also notes whether there is a
+     * journal of unsaved changes to be applied by
+     * {@link #recoverDocument(Folio) recoverDocument()}.
      */
     public void checkFilename() throws FileNotFoundException, RecoveryFileExistsException {
         final File source, probe;
@@ -209,12 +388,88 @@ public class Manuscript
             throw new FileNotFoundException("\n" + filename);
         }
 
+        journalled = getJournalFile().exists();
+
         probe = new File(filename + ".RESCUED");
         if (probe.exists()) {
             throw new RecoveryFileExistsException(probe.toString());
         }
     }
 
+    private File getJournalFile() {
+        return new File(filename + ".journal");
+    }
+
+    /**
+     * If checkFilename() found a journal of changes that were never saved,
+     * replay it onto the given Folio (as just loaded) and return the result.
+     * Otherwise you get the Folio back as is.
+     */
+    public Folio recoverDocument(final Folio folio) throws IOException {
+        if (!journalled) {
+            return folio;
+        }
+        journalled = false;
+
+        return Journal.replay(getJournalFile(), folio);
+    }
+
+    /**
+     * Start keeping a journal of changes to the document, beginning from the
+     * given state (which should be what is on disk). Any existing journal is
+     * replaced, so recover it first.
+     */
+    public void startJournal(final Folio folio) {
+        if (journal != null) {
+            journal.close();
+        }
+        journal = new Journal(getJournalFile());
+        journal.start(folio);
+    }
+
+    /**
+     * The document has changed (or been undone) to the given state; record
+     * that in the journal, if one is being kept.
+     */
+    public void journalDocument(final Folio folio) {
+        final Journal current;
+
+        current = journal;
+        if (current != null) {
+            current.record(folio);
+        }
+    }
+
+    /**
+     * The Component at index was loaded again, its chapter file having been
+     * changed by something else. Call this once the document has been
+     * updated to include it, so the journal carries on from what is now on
+     * disk.
+     */
+    public void journalReload(final int index, final Component component) {
+        final Journal current;
+
+        current = journal;
+        if (current != null) {
+            current.reload(index, component);
+        }
+    }
+
+    /**
+     * Stop keeping a journal and remove it. Call this when the document is
+     * closed, having been saved or with its changes deliberately discarded.
+     */
+    public void stopJournal() {
+        final Journal current;
+
+        current = journal;
+        journal = null;
+
+        if (current != null) {
+            current.close();
+        }
+    }
+
     /**
      * Set the filename that this document is being saved to. Things like
      * overwriting confirmation should have been done by the UI already.
@@ -250,26 +505,108 @@ public class Manuscript
      * Save the state described by the given Folio into the set of files
      * described by this Manuscript.
      */
+    /*
+     * Only the files that have changed are written. Components, Stylesheet,
+     * and Metadata are immutable, so if the Folio holds the same instances
+     * that were last loaded or saved (and nobody has touched the files since)
+     * then there's nothing to do.
+     */
+    public void saveDocument(Folio folio) throws IOException {
+        saveDocument(folio, false);
+    }
+
+    /**
+     * Save the state described by the given Folio, rewriting every file
+     * whether or not it has changed. This is what you want if the point is
+     * to normalize the files' formatting.
+     */
+    public void saveDocumentCompletely(Folio folio) throws IOException {
+        saveDocument(folio, true);
+    }
+
     /*
      * FIXME! Process names appropriate to actual inbound Folio, not existing
      * Chapters
      */
-    public void saveDocument(Folio folio) throws IOException {
+    private void saveDocument(final Folio folio, final boolean all) throws IOException {
         int i;
         Component component;
         Chapter chapter;
+        final Journal current;
 
-        this.saveDocument0(folio);
+        if (all || !isSaved(folio)) {
+            this.saveDocument0(folio);
+        }
 
         /*
          * Now save chapters
          */
 
         for (i = 0; i < folio.size(); i++) {
-            component = folio.getComponent(i);
             chapter = folio.getChapter(i);
+            component = folio.getComponent(i);
+            if (!all && chapter.isSaved(component)) {
+                continue;
+            }
             chapter.saveDocument(component);
         }
+
+        /*
+         * Everything up to this state is now on disk, so the journal can
+         * start over.
+         */
+
+        current = journal;
+        if (current != null) {
+            current.reset(folio, getJournalFile());
+        }
+    }
+
+    private synchronized void setSaved(final Folio folio, final long modified, final long length) {
+        final String[] sources;
+        int i;
+
+        sources = new String[folio.size()];
+        for (i = 0; i < sources.length; i++) {
+            sources[i] = folio.getChapter(i).getRelative();
+        }
+
+        savedStyle = folio.getStylesheet();
+        savedMeta = folio.getMetadata();
+        savedSources = sources;
+        savedFilename = filename;
+        savedModified = modified;
+        savedLength = length;
+    }
+
+    /**
+     * Does the .parchment file on disk already describe the given Folio?
+     */
+    private synchronized boolean isSaved(final Folio folio) {
+        final File target;
+        int i;
+
+        if ((savedSources == null) || (folio.getStylesheet() != savedStyle)
+                || (folio.getMetadata() != savedMeta) || (folio.size() != savedSources.length)) {
+            return false;
+        }
+
+        for (i = 0; i < savedSources.length; i++) {
+            if (!savedSources[i].equals(folio.getChapter(i).getRelative())) {
+                return false;
+            }
+        }
+
+        if (!filename.equals(savedFilename)) {
+            return false;
+        }
+
+        target = new File(filename);
+        if (!target.exists()) {
+            return false;
+        }
+
+        return (target.lastModified() == savedModified) && (target.length() == savedLength);
     }
 
     private void saveDocument0(Folio folio) throws IOException {
@@ -314,6 +651,7 @@ public class Manuscript
             converter = new ManuscriptConverter(folio);
             converter.writeManuscript(out);
 
+            out.getFD().sync();
             out.close();
         } catch (IOException ioe) {
             tmp.delete();
@@ -329,6 +667,8 @@ public class Manuscript
             tmp.delete();
             throw new IOException("Unable to rename temporary file to target document!");
         }
+
+        setSaved(folio, target.lastModified(), target.length());
     }
 
     /**
@@ -0,0 +1,354 @@
+/*
+ * Quill and Parchment, a WYSIWYN document editor and rendering engine.
+ *
+ * Copyright © 2011 Operational Dynamics Consulting, Pty Ltd
+ *
+ * The code in this file, and the program it is a part of, is made available
+ * to you by its authors as open source software: you can redistribute it
+ * and/or modify it under the terms of the GNU General Public License version
+ * 2 ("GPL") as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GPL for more details.
+ *
+ * You should have received a copy of the GPL along with this program. If not,
+ * see http://www.gnu.org/licenses/. The authors of this program may be
+ * contacted through http://research.operationaldynamics.com/projects/quill/.
+ */
+package parchment.manuscript;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+import quill.textbase.AttributionSegment;
+import quill.textbase.ChapterSegment;
+import quill.textbase.Common;
+import quill.textbase.DivisionSegment;
+import quill.textbase.EndnoteSegment;
+import quill.textbase.Extract;
+import quill.textbase.HeadingSegment;
+import quill.textbase.Hyperlink;
+import quill.textbase.ImageSegment;
+import quill.textbase.LeaderSegment;
+import quill.textbase.ListitemSegment;
+import quill.textbase.MarkerSpan;
+import quill.textbase.Markup;
+import quill.textbase.NormalSegment;
+import quill.textbase.PoeticSegment;
+import quill.textbase.Preformat;
+import quill.textbase.PreformatSegment;
+import quill.textbase.QuoteSegment;
+import quill.textbase.ReferenceSegment;
+import quill.textbase.Segment;
+import quill.textbase.Span;
+import quill.textbase.SpanVisitor;
+import quill.textbase.Special;
+import quill.textbase.SpecialSegment;
+import quill.textbase.TextArena;
+import quill.textbase.TextChain;
+
+/**
+ * A compact binary encoding of Segments: the kind of Segment, its extra,
+ * and each Span's text and Markup. Used for the Journal and the
+ * ChapterCache, both of which need to write and read Segments quickly
+ * without going through XML.
+ *
+ * @author Andrew Cowie
+ */
+final class SegmentCodec
+{
+    private SegmentCodec() {}
+
+    private static final HashMap<String, Markup> markups;
+
+    static {
+        final Markup[] known;
+
+        known = new Markup[] {
+            Common.ITALICS,
+            Common.BOLD,
+            Common.FILENAME,
+            Common.TYPE,
+            Common.LITERAL,
+            Common.FUNCTION,
+            Common.PROJECT,
+            Common.COMMAND,
+            Common.HIGHLIGHT,
+            Common.TITLE,
+            Common.KEYBOARD,
+            Common.ACRONYM,
+            Preformat.USERINPUT,
+            Special.NOTE,
+            Special.CITE
+        };
+
+        markups = new HashMap<String, Markup>(32);
+        for (Markup markup : known) {
+            markups.put(markup.toString(), markup);
+        }
+    }
+
+    static void writeSegment(final DataOutput data, final Segment segment) throws IOException {
+        writeString(data, segment.getClass().getSimpleName());
+        writeString(data, segment.getExtra());
+        writeSpans(data, segment.getEntire());
+    }
+
+    /**
+     * Read a Segment. If arena is not null, the text of its Spans will be
+     * stored there.
+     */
+    static Segment readSegment(final DataInput data, final TextArena arena) throws IOException {
+        final String type, extra;
+        Extract entire;
+
+        type = readString(data);
+        extra = readString(data);
+        entire = readSpans(data, arena);
+        if (entire == null) {
+            entire = Extract.create();
+        }
+
+        if (type.equals("NormalSegment")) {
+            return new NormalSegment(entire);
+        } else if (type.equals("PreformatSegment")) {
+            return new PreformatSegment(entire);
+        } else if (type.equals("QuoteSegment")) {
+            return new QuoteSegment(entire);
+        } else if (type.equals("PoeticSegment")) {
+            return new PoeticSegment(entire);
+        } else if (type.equals("AttributionSegment")) {
+            return new AttributionSegment(entire);
+        } else if (type.equals("ListitemSegment")) {
+            return new ListitemSegment(entire, extra);
+        } else if (type.equals("ImageSegment")) {
+            return new ImageSegment(entire, extra);
+        } else if (type.equals("HeadingSegment")) {
+            return new HeadingSegment(entire, extra);
+        } else if (type.equals("ChapterSegment")) {
+            return new ChapterSegment(entire, extra);
+        } else if (type.equals("DivisionSegment")) {
+            return new DivisionSegment(entire, extra);
+        } else if (type.equals("LeaderSegment")) {
+            return new LeaderSegment(entire);
+        } else if (type.equals("EndnoteSegment")) {
+            return new EndnoteSegment(entire, extra);
+        } else if (type.equals("ReferenceSegment")) {
+            return new ReferenceSegment(entire, extra);
+        } else if (type.equals("SpecialSegment")) {
+            return new SpecialSegment(extra);
+        } else {
+            throw new IOException("Unknown segment type " + type);
+        }
+    }
+
+    /**
+     * Write the Spans making up the given Extract, which may be null if
+     * there aren't any.
+     */
+    static void writeSpans(final DataOutput data, final Extract extract) throws IOException {
+        final List<Span> spans;
+        char[] chars;
+        int len;
+
+        spans = new ArrayList<Span>(8);
+
+        if (extract != null) {
+            extract.visit(new SpanVisitor() {
+                public boolean visit(Span span) {
+                    spans.add(span);
+                    return false;
+                }
+            });
+        }
+
+        data.writeInt(spans.size());
+
+        chars = new char[64];
+
+        for (Span span : spans) {
+            data.writeBoolean(span instanceof MarkerSpan);
+
+            len = span.getTextLength();
+            if (len > chars.length) {
+                chars = new char[Math.max(chars.length * 2, len)];
+            }
+            span.getChars(chars, 0);
+            writeChars(data, chars, len);
+
+            writeMarkup(data, span.getMarkup());
+        }
+    }
+
+    /**
+     * Write the first len chars exactly as writeString() would write them
+     * as a String, but without having to make one.
+     */
+    private static void writeChars(final DataOutput data, final char[] chars, final int len)
+            throws IOException {
+        int i, ch, bytes;
+
+        bytes = 0;
+        for (i = 0; i < len; i += Character.charCount(ch)) {
+            ch = Character.codePointAt(chars, i, len);
+            bytes += lengthOf(ch);
+        }
+
+        data.writeInt(bytes);
+
+        for (i = 0; i < len; i += Character.charCount(ch)) {
+            ch = Character.codePointAt(chars, i, len);
+
+            if ((ch >= 0xD800) && (ch <= 0xDFFF)) {
+                /*
+                 * Unpaired, which String.getBytes() replaces.
+                 */
+                data.write('?');
+            } else if (ch < 0x80) {
+                data.write(ch);
+            } else if (ch < 0x800) {
+                data.write(0xC0 | (ch >> 6));
+                data.write(0x80 | (ch & 0x3F));
+            } else if (ch < 0x10000) {
+                data.write(0xE0 | (ch >> 12));
+                data.write(0x80 | ((ch >> 6) & 0x3F));
+                data.write(0x80 | (ch & 0x3F));
+            } else {
+                data.write(0xF0 | (ch >> 18));
+                data.write(0x80 | ((ch >> 12) & 0x3F));
+                data.write(0x80 | ((ch >> 6) & 0x3F));
+                data.write(0x80 | (ch & 0x3F));
+            }
+        }
+    }
+
+    /**
+     * Number of bytes the given code point takes in UTF-8.
+     */
+    private static int lengthOf(final int ch) {
+        if ((ch >= 0xD800) && (ch <= 0xDFFF)) {
+            return 1;
+        } else if (ch < 0x80) {
+            return 1;
+        } else if (ch < 0x800) {
+            return 2;
+        } else if (ch < 0x10000) {
+            return 3;
+        } else {
+            return 4;
+        }
+    }
+
+    /**
+     * Read a sequence of Spans, returning null if there weren't any. Text is
+     * stored in the given arena, if there is one.
+     */
+    static Extract readSpans(final DataInput data, final TextArena arena) throws IOException {
+        final int num;
+        final TextChain chain;
+        boolean marker;
+        String text;
+        Markup markup;
+        int i;
+
+        num = data.readInt();
+        if (num == 0) {
+            return null;
+        }
+        if (num < 0) {
+            throw new IOException("Invalid number of spans");
+        }
+
+        chain = new TextChain();
+
+        for (i = 0; i < num; i++) {
+            marker = data.readBoolean();
+            text = readString(data);
+            markup = readMarkup(data);
+
+            if (text == null) {
+                throw new IOException("Span without text");
+            }
+
+            if (marker) {
+                chain.append(Span.createMarker(text, markup));
+            } else if (arena != null) {
+                chain.append(arena.createSpan(text, 0, text.length(), false, markup));
+            } else {
+                chain.append(Span.createSpan(text, markup));
+            }
+        }
+
+        return chain.extractAll();
+    }
+
+    private static void writeMarkup(final DataOutput data, final Markup markup) throws IOException {
+        if (markup == null) {
+            data.writeByte(0);
+        } else if (markup instanceof Hyperlink) {
+            data.writeByte(2);
+            writeString(data, ((Hyperlink) markup).getURL());
+        } else {
+            data.writeByte(1);
+            writeString(data, markup.toString());
+        }
+    }
+
+    private static Markup readMarkup(final DataInput data) throws IOException {
+        final byte kind;
+        final String name;
+        final Markup markup;
+
+        kind = data.readByte();
+
+        if (kind == 0) {
+            return null;
+        } else if (kind == 2) {
+            return new Hyperlink(readString(data));
+        }
+
+        name = readString(data);
+        markup = markups.get(name);
+        if (markup == null) {
+            throw new IOException("Unknown markup " + name);
+        }
+
+        return markup;
+    }
+
+    static void writeString(final DataOutput data, final String str) throws IOException {
+        final byte[] bytes;
+
+        if (str == null) {
+            data.writeInt(-1);
+            return;
+        }
+
+        bytes = str.getBytes("UTF-8");
+        data.writeInt(bytes.length);
+        data.write(bytes);
+    }
+
+    static String readString(final DataInput data) throws IOException {
+        final int length;
+        final byte[] bytes;
+
+        length = data.readInt();
+        if (length == -1) {
+            return null;
+        }
+        if (length < 0) {
+            throw new IOException("Invalid string length");
+        }
+
+        bytes = new byte[length];
+        data.readFully(bytes);
+
+        return new String(bytes, "UTF-8");
+    }
+}
@@ -18,9 +18,16 @@
  */
 package parchment.quack;
 
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.util.ArrayList;
 
+import nu.xom.Builder;
 import nu.xom.Document;
+import nu.xom.ParsingException;
+import nu.xom.ValidityException;
 import quill.textbase.AttributionSegment;
 import quill.textbase.ChapterSegment;
 import quill.textbase.Common;
@@ -44,15 +51,19 @@ import quill.textbase.Series;
 import quill.textbase.Span;
 import quill.textbase.Special;
 import quill.textbase.SpecialSegment;
+import quill.textbase.TextArena;
 import quill.textbase.TextChain;
 
-import static quill.textbase.Span.createSpan;
-
 /**
  * Take a XOM tree (built using QuackNodeFactory and so having our
  * QuackElements) and convert it into our internal in-memory textchain
  * representation.
  * 
+ * <p>
+ * Alternatively, {@link #load(File) load()} a file directly, in which case
+ * each Block is processed as soon as it has been parsed and the tree for the
+ * whole document is never built.
+ * 
  * @author Andrew Cowie
  */
 public class QuackLoader
@@ -107,10 +118,22 @@ public class QuackLoader
      */
     private Span pending;
 
+    /**
+     * When streaming, the exception (if any) thrown while processing a
+     * Block, which Builder will have wrapped.
+     */
+    private RuntimeException problem;
+
+    /**
+     * Where the character data of the Spans we create is stored.
+     */
+    private final TextArena arena;
+
     public QuackLoader() {
         mainbody = new ArrayList<Segment>(16);
         endnotes = new ArrayList<Segment>(4);
         references = new ArrayList<Segment>(0);
+        arena = new TextArena();
 
         chain = null;
     }
@@ -142,17 +165,74 @@ public class QuackLoader
             processBlock(blocks[j]);
         }
 
-        /*
-         * Finally, transpose the resultant collection of Segments into a
-         * Series, and return it.
-         */
+        return getComponent();
+    }
+
+    /**
+     * Parse the given Quack file, processing each Block as it is completed.
+     */
+    public Component load(final File source) throws ValidityException, ParsingException, IOException {
+        final InputStream in;
+
+        in = new FileInputStream(source);
+        try {
+            return load(in);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Parse Quack from the given stream, processing each Block as it is
+     * completed. The parser reads the stream to its end and closes it.
+     */
+    public Component load(final InputStream in) throws ValidityException, ParsingException, IOException {
+        final QuackNodeFactory factory;
+        final Builder parser;
+
+        factory = new QuackNodeFactory(this);
+        parser = new Builder(factory);
+
+        try {
+            parser.build(in);
+        } catch (ParsingException pe) {
+            /*
+             * Builder wraps anything thrown from the NodeFactory. Invalid
+             * content is reported as it was when the loader ran after
+             * parsing, rather than as an XML problem.
+             */
+            if (problem != null) {
+                throw problem;
+            }
+            throw pe;
+        }
+
+        return getComponent();
+    }
+
+    /**
+     * Called by QuackNodeFactory as each Block is parsed.
+     */
+    void streamBlock(final Block block) {
+        try {
+            processBlock(block);
+        } catch (RuntimeException re) {
+            problem = re;
+            throw re;
+        }
+    }
 
+    /**
+     * Transpose the resultant collection of Segments into a Series, and
+     * return it.
+     */
+    Component getComponent() {
         ensureChapterHasTitle();
 
         return new Component(new Series(mainbody), new Series(endnotes), new Series(references));
     }
 
-    private void processComponent(Root quack) {
+    void processComponent(Root quack) {
         if (quack instanceof RootElement) {
             start = true;
             preserve = false;
@@ -211,7 +291,7 @@ public class QuackLoader
      * It's a bit ugly to be adding the Segment only to immediately remove it
      * again in the common case of a continuing run of normal text.
      */
-    private void processBlock(Block block) {
+    void processBlock(Block block) {
         Extract entire;
         int i;
 
@@ -449,21 +529,21 @@ public class QuackLoader
      * This will be the contiguous text body of the element until either a) an
      * nested (inline) element starts, or b) the end of the element is
      * reached. So we trim off the leading pretty-print whitespace then add a
-     * single StringSpan with this content.
+     * single StringSpan with this content. Rather than taking substrings, we
+     * work out the range of text wanted and have the arena copy just that.
      */
     private void processText(String text) {
-        final String trim, str;
-        int len;
+        int begin, end;
         char ch;
 
-        len = text.length();
+        end = text.length();
 
         /*
          * This case, and the first in the next block, are common for
          * structure tags
          */
 
-        if (len == 0) {
+        if (end == 0) {
             space = false;
             return; // empty
         }
@@ -473,7 +553,7 @@ public class QuackLoader
          * expensive, but we have tests that expect this.
          */
 
-        if ((!preserve) && (len > 1)) {
+        if ((!preserve) && (end > 1)) {
             if (text.contains("\n\n")) {
                 throw new IllegalStateException("Can't have bare newlines in normal Blocks");
             }
@@ -485,17 +565,18 @@ public class QuackLoader
          * space from the previous run of text, pad the inline with one space.
          */
 
+        begin = 0;
+
         if (start) {
             start = false;
             space = false;
 
             ch = text.charAt(0);
             if (ch == '\n') {
-                if (len == 1) {
+                if (end == 1) {
                     return; // ignore it
                 }
-                text = text.substring(1);
-                len--;
+                begin = 1;
             }
         } else if (space) {
             chain.append(pending);
@@ -503,17 +584,6 @@ public class QuackLoader
             pending = null;
         }
 
-        /*
-         * If not preformatted text, turn any interior newlines into spaces,
-         * then add.
-         */
-
-        if (preserve) {
-            str = text;
-        } else {
-            str = text.replace('\n', ' ');
-        }
-
         /*
          * Trim the trailing newline (if there is one) as it could be the
          * break before a close-element tag. We replace it with a space and
@@ -521,22 +591,25 @@ public class QuackLoader
          * Text and an Inline when making the next Text node.
          */
 
-        ch = text.charAt(len - 1);
+        ch = text.charAt(end - 1);
         if (ch == '\n') {
-            trim = str.substring(0, len - 1);
             space = true;
             pending = Span.createSpan(' ', markup);
 
-            if (len == 1) {
+            if (end - begin == 1) {
                 return; // captured in pending
             }
-            len--;
+            end--;
         } else {
-            trim = str;
             space = false;
         }
 
-        chain.append(createSpan(trim, markup));
+        /*
+         * If not preformatted text, turn any interior newlines into spaces
+         * as the text is copied, then add.
+         */
+
+        chain.append(arena.createSpan(text, begin, end, !preserve, markup));
     }
 
     private void processMarker(String str) {
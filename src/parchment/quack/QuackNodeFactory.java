@@ -27,6 +27,13 @@ import nu.xom.Nodes;
  * Use XOM as a front end to whatever XML parser and then work its callbacks
  * to create parchment.quack wrapper objects.
  * 
+ * <p>
+ * If constructed with a QuackLoader, each block level element is handed to
+ * the loader as soon as it has been parsed, and is then discarded rather
+ * than being added to the tree. The Document resulting from the parse is
+ * thus just an empty root element; the content is in the loader. This saves
+ * building (and then walking) the tree for an entire chapter.
+ * 
  * @author Andrew Cowie
  */
 public class QuackNodeFactory extends NodeFactory
@@ -37,6 +44,16 @@ public class QuackNodeFactory extends NodeFactory
         empty = new Nodes();
     }
 
+    private final QuackLoader loader;
+
+    public QuackNodeFactory() {
+        this.loader = null;
+    }
+
+    public QuackNodeFactory(QuackLoader loader) {
+        this.loader = loader;
+    }
+
     public Nodes makeText(String text) {
         return super.makeText(text);
     }
@@ -148,13 +165,32 @@ public class QuackNodeFactory extends NodeFactory
      */
 
     public Element makeRootElement(String name, String namespace) {
+        final RootElement root;
+
         if (name.equals("quack")) {
-            return new RootElement();
+            root = new RootElement();
+            if (loader != null) {
+                loader.processComponent(root);
+            }
+            return root;
         } else {
             throw new IllegalStateException("Invalid document");
         }
     }
 
+    /*
+     * When streaming, a Block is complete (along with its text and Inlines)
+     * when its end tag is reached. Process it, then return nothing, which
+     * has Builder detach it from the root.
+     */
+    public Nodes finishMakingElement(Element element) {
+        if ((loader != null) && (element instanceof Block) && (element.getParent() instanceof Root)) {
+            loader.streamBlock((Block) element);
+            return empty;
+        }
+        return super.finishMakingElement(element);
+    }
+
     public Nodes makeComment(String text) {
         return empty;
     }
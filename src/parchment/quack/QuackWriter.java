@@ -0,0 +1,847 @@
+/*
+ * Quill and Parchment, a WYSIWYN document editor and rendering engine.
+ *
+ * Copyright © 2011 Operational Dynamics Consulting, Pty Ltd
+ *
+ * The code in this file, and the program it is a part of, is made available
+ * to you by its authors as open source software: you can redistribute it
+ * and/or modify it under the terms of the GNU General Public License version
+ * 2 ("GPL") as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GPL for more details.
+ *
+ * You should have received a copy of the GPL along with this program. If not,
+ * see http://www.gnu.org/licenses/. The authors of this program may be
+ * contacted through http://research.operationaldynamics.com/projects/quill/.
+ */
+package parchment.quack;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import nu.xom.IllegalCharacterDataException;
+import quill.textbase.AttributionSegment;
+import quill.textbase.ChapterSegment;
+import quill.textbase.Common;
+import quill.textbase.DivisionSegment;
+import quill.textbase.EndnoteSegment;
+import quill.textbase.Extract;
+import quill.textbase.HeadingSegment;
+import quill.textbase.ImageSegment;
+import quill.textbase.LeaderSegment;
+import quill.textbase.ListitemSegment;
+import quill.textbase.MarkerSpan;
+import quill.textbase.Markup;
+import quill.textbase.NormalSegment;
+import quill.textbase.PoeticSegment;
+import quill.textbase.Preformat;
+import quill.textbase.PreformatSegment;
+import quill.textbase.QuoteSegment;
+import quill.textbase.ReferenceSegment;
+import quill.textbase.Segment;
+import quill.textbase.Span;
+import quill.textbase.SpanVisitor;
+import quill.textbase.Special;
+import quill.textbase.SpecialSegment;
+
+/**
+ * Write Segments out as Quack XML, directly to UTF-8 bytes. The output is
+ * exactly what running the Segments through a {@link QuackConverter} and
+ * then serializing the resultant tree with QuackSerializer gives, including
+ * its wrapping at 70 characters; but no XOM tree is built and the text isn't
+ * copied into intermediate Strings along the way.
+ *
+ * <p>
+ * Use as follows:
+ *
+ * <pre>
+ * writer = new QuackWriter(out);
+ * writer.append(segment);
+ * ...
+ * writer.finish();
+ * </pre>
+ *
+ * The OutputStream is flushed but not closed.
+ *
+ * @author Andrew Cowie
+ */
+/*
+ * The logic of append() and its helpers is that of QuackConverter, and
+ * that of accumulate() and writeAccumulated() is that of QuackSerializer;
+ * if you change the output of one, change the other. Rather than elements,
+ * we keep track of the names of the current block and inline, and emit
+ * their tags as content is added to them. Rather than a list of Strings,
+ * the tokens that line wrapping is decided over are ranges of a single
+ * character array.
+ */
+public class QuackWriter
+{
+    private static final String NAMESPACE = "http://namespace.operationaldynamics.com/parchment/5.0";
+
+    /*
+     * Kinds of token. QuackSerializer tells newlines and spaces which it
+     * inserted itself (and which can therefore be moved by wrapping) from
+     * those in text by String identity.
+     */
+
+    private static final byte TEXT = 0;
+
+    private static final byte SPACE = 1;
+
+    private static final byte NEWLINE = 2;
+
+    private final OutputStream out;
+
+    /**
+     * Encoded output waiting to be written.
+     */
+    private final byte[] bytes;
+
+    private int used;
+
+    /*
+     * The tokens accumulated for the current block. Token i is the range of
+     * chars from offsets[i] to offsets[i + 1] (or length, if it is the last
+     * one).
+     */
+
+    private char[] chars;
+
+    private int length;
+
+    private int[] offsets;
+
+    private byte[] kinds;
+
+    private int count;
+
+    /**
+     * The text of the Span being processed, copied here so we don't need a
+     * String for each one.
+     */
+    private char[] span;
+
+    private static final char[] LINEFEED = {
+        '\n'
+    };
+
+    /**
+     * Is the last token a text one still being added to?
+     */
+    private boolean open;
+
+    /**
+     * Are we in a Block which preserves whitespace?
+     */
+    private boolean preserving;
+
+    /**
+     * The current internal block we are working through
+     */
+    private Segment segment;
+
+    /*
+     * The current output block. If it has been added to the document, but
+     * nothing has been put in it yet, its start tag hasn't been written.
+     */
+
+    private String block;
+
+    private String attribute;
+
+    private String value;
+
+    /**
+     * Does the current block preserve whitespace?
+     */
+    private boolean preserve;
+
+    private boolean added;
+
+    private boolean started;
+
+    /**
+     * The name of the inline element text is being accumulated into, if any.
+     */
+    private String inline;
+
+    /**
+     * Have we accumulated any text since the last finishText()?
+     */
+    private boolean accumulating;
+
+    /**
+     * Is the text being accumulated the reference of a marker?
+     */
+    private boolean marker;
+
+    private Markup previous;
+
+    private final SpanVisitor visitor;
+
+    public QuackWriter(OutputStream out) {
+        this.out = out;
+        this.bytes = new byte[8192];
+        this.used = 0;
+
+        chars = new char[1024];
+        offsets = new int[128];
+        kinds = new byte[128];
+        span = new char[256];
+
+        visitor = new SpanVisitor() {
+            public boolean visit(Span span) {
+                try {
+                    process(span);
+                } catch (IOException ioe) {
+                    throw new WriterException(ioe);
+                }
+                return false;
+            }
+        };
+
+        accumulate("<?xml version=\"1.0\" encoding=\"UTF-8\"?>");
+        newline();
+        accumulate("<quack xmlns=\"" + NAMESPACE + "\">");
+        newline();
+    }
+
+    /**
+     * Append a Segment.
+     */
+    public void append(final Segment segment) throws IOException {
+        final Extract entire;
+        String name, key, data;
+        boolean keep, empty, optional;
+
+        this.segment = segment;
+
+        key = null;
+        data = null;
+        keep = false;
+        empty = false;
+        optional = false;
+
+        if (segment instanceof ChapterSegment) {
+            name = "chapter";
+            data = label(segment);
+        } else if (segment instanceof DivisionSegment) {
+            name = "division";
+            data = label(segment);
+        } else if (segment instanceof HeadingSegment) {
+            name = "heading";
+            data = label(segment);
+        } else if (segment instanceof PreformatSegment) {
+            name = "code";
+            key = "xml:space";
+            data = "preserve";
+            keep = true;
+        } else if (segment instanceof QuoteSegment) {
+            name = "quote";
+        } else if (segment instanceof NormalSegment) {
+            name = "text";
+        } else if (segment instanceof PoeticSegment) {
+            name = "poem";
+            key = "xml:space";
+            data = "preserve";
+            keep = true;
+        } else if (segment instanceof ListitemSegment) {
+            name = "list";
+            data = label(segment);
+        } else if (segment instanceof AttributionSegment) {
+            name = "credit";
+        } else if (segment instanceof ImageSegment) {
+            name = "image";
+            key = "src";
+            data = segment.getExtra();
+            optional = true;
+        } else if (segment instanceof EndnoteSegment) {
+            name = "endnote";
+            key = "name";
+            data = segment.getExtra();
+        } else if (segment instanceof ReferenceSegment) {
+            name = "reference";
+            key = "name";
+            data = segment.getExtra();
+        } else if (segment instanceof LeaderSegment) {
+            name = "leader";
+        } else if (segment instanceof SpecialSegment) {
+            name = "special";
+            key = "type";
+            data = segment.getExtra();
+            empty = true;
+        } else {
+            throw new IllegalStateException("Unhandled segment type " + segment);
+        }
+        inline = null;
+
+        if ((key == null) && (data != null)) {
+            key = "label";
+        }
+        if (key != null) {
+            if (data == null) {
+                throw new NullPointerException();
+            }
+            verify(data);
+        }
+
+        /*
+         * Special case for empty blocks.
+         */
+
+        if (empty) {
+            add(name, key, data, keep);
+            return;
+        }
+
+        /*
+         * As with QuackConverter, a Segment with no content is skipped.
+         */
+
+        entire = segment.getEntire();
+        if ((entire.getWidth() > 0) || optional) {
+            add(name, key, data, keep);
+            append(entire);
+        }
+    }
+
+    /**
+     * Get the label to be given as an attribute, if there is one.
+     */
+    private static String label(final Segment segment) {
+        final String extra;
+
+        extra = segment.getExtra();
+        if ((extra != null) && (extra.length() != 0)) {
+            return extra;
+        } else {
+            return null;
+        }
+    }
+
+    private void append(final Extract entire) throws IOException {
+        try {
+            entire.visit(visitor);
+        } catch (WriterException we) {
+            throw we.ioe;
+        }
+
+        finishText();
+    }
+
+    private void process(final Span source) throws IOException {
+        final Markup markup;
+        final char[] str;
+        final int len;
+        int i, j;
+
+        markup = source.getMarkup();
+        if (markup != previous) {
+            finishText();
+            start(markup);
+            previous = markup;
+        }
+
+        len = source.getTextLength();
+        if (len > span.length) {
+            span = new char[Math.max(span.length * 2, len)];
+        }
+        str = span;
+        source.getChars(str, 0);
+
+        if (source instanceof MarkerSpan) {
+            text(str, 0, len);
+            return;
+        }
+
+        j = 0;
+
+        for (i = 0; i < len; i++) {
+            if (str[i] == '\n') {
+                text(str, j, i);
+                j = i + 1;
+                newline(segment);
+            }
+        }
+        text(str, j, len);
+    }
+
+    private void start(final Markup format) {
+        if (format == null) {
+            return;
+        }
+
+        if (format == Common.FILENAME) {
+            inline = "filename";
+        } else if (format == Common.TYPE) {
+            inline = "type";
+        } else if (format == Common.FUNCTION) {
+            inline = "function";
+        } else if (format == Common.ITALICS) {
+            inline = "italics";
+        } else if (format == Common.BOLD) {
+            inline = "bold";
+        } else if (format == Common.LITERAL) {
+            inline = "literal";
+        } else if (format == Common.PROJECT) {
+            inline = "project";
+        } else if (format == Common.COMMAND) {
+            inline = "command";
+        } else if (format == Common.HIGHLIGHT) {
+            inline = "highlight";
+        } else if (format == Common.TITLE) {
+            inline = "title";
+        } else if (format == Common.KEYBOARD) {
+            inline = "keyboard";
+        } else if (format == Common.ACRONYM) {
+            inline = "acronym";
+        } else if (format == Preformat.USERINPUT) {
+            // boom?
+        } else if (format == Special.NOTE) {
+            inline = "note";
+        } else if (format == Special.CITE) {
+            inline = "cite";
+        } else {
+            throw new IllegalStateException();
+        }
+    }
+
+    /**
+     * Close off the text being accumulated, and with it the inline element
+     * it is in, if any.
+     */
+    private void finishText() {
+        if (!accumulating) {
+            return;
+        }
+        accumulating = false;
+        open = false;
+
+        if (marker) {
+            put("\"/>");
+            marker = false;
+            inline = null;
+        } else if (inline != null) {
+            open = false;
+            token(TEXT);
+            put("</");
+            put(inline);
+            put('>');
+            inline = null;
+        }
+    }
+
+    /**
+     * A newline in the text of a Segment. Either it is content, or it starts
+     * another block.
+     */
+    private void newline(final Segment segment) throws IOException {
+        finishText();
+        start(previous);
+
+        if (segment instanceof NormalSegment) {
+            add("text", null, null, false);
+        } else if (segment instanceof PreformatSegment) {
+            text(LINEFEED, 0, 1);
+        } else if (segment instanceof QuoteSegment) {
+            add("quote", null, null, false);
+        } else if (segment instanceof PoeticSegment) {
+            text(LINEFEED, 0, 1);
+        } else if (segment instanceof ListitemSegment) {
+            add("list", null, null, false);
+        } else if (segment instanceof AttributionSegment) {
+            add("credit", null, null, false);
+        } else {
+            throw new IllegalStateException("\n" + "Newlines aren't allowed in " + "<" + block + ">");
+        }
+    }
+
+    /**
+     * A new block is being added to the document, which means the one before
+     * it is complete and can be written out.
+     */
+    private void add(final String name, final String key, final String data, final boolean keep)
+            throws IOException {
+        closeBlock();
+
+        block = name;
+        attribute = key;
+        value = data;
+        preserve = keep;
+
+        added = true;
+        started = false;
+    }
+
+    private void closeBlock() throws IOException {
+        if (!added) {
+            return;
+        }
+
+        if (started) {
+            endTag();
+        } else {
+            startTag(true);
+        }
+
+        added = false;
+        writeAccumulated();
+    }
+
+    /**
+     * Write out the start tag of the current block.
+     */
+    private void startTag(final boolean empty) {
+        open = false;
+        token(TEXT);
+
+        put('<');
+        put(block);
+
+        if (attribute != null) {
+            put(' ');
+            put(attribute);
+            put('=');
+            put('"');
+            put(value);
+            put('"');
+        }
+        if (empty) {
+            put('/');
+        }
+        put('>');
+
+        if (preserve) {
+            preserving = true;
+        }
+        newline();
+    }
+
+    /**
+     * Write out the end tag of the current block, taking the cursor back to
+     * the beginning of the line first.
+     */
+    private void endTag() {
+        newline();
+
+        open = false;
+        token(TEXT);
+        put("</");
+        put(block);
+        put('>');
+
+        newline();
+        preserving = false;
+    }
+
+    /**
+     * Add the given range of characters to the text of the current block
+     * (or inline), escaping and breaking it into tokens as we go.
+     */
+    private void text(final char[] str, final int begin, final int end) {
+        int i;
+        char ch;
+
+        if (begin == end) {
+            return;
+        }
+
+        if (!accumulating) {
+            if (!started) {
+                startTag(false);
+                started = true;
+            }
+            if (inline != null) {
+                open = false;
+                token(TEXT);
+                put('<');
+                put(inline);
+
+                /*
+                 * Marker elements (see MarkerElement) take their text as a
+                 * ref attribute, and so are written as an empty element.
+                 */
+
+                if ((inline == "note") || (inline == "cite")) {
+                    put(" ref=\"");
+                    marker = true;
+                } else {
+                    put('>');
+                }
+            }
+            accumulating = true;
+        }
+
+        if (marker) {
+            for (i = begin; i < end; i++) {
+                ch = str[i];
+                if (isIllegal(ch) && !Character.isSurrogate(ch)) {
+                    throw new IllegalCharacterDataException("0x" + Integer.toHexString(ch).toUpperCase()
+                            + " is not allowed in XML content");
+                }
+                put(ch);
+            }
+            return;
+        }
+
+        for (i = begin; i < end; i++) {
+            ch = str[i];
+
+            if ((ch == ' ') && !preserving) {
+                open = false;
+                token(SPACE);
+                put(' ');
+                continue;
+            }
+
+            if (!open) {
+                token(TEXT);
+                open = true;
+            }
+
+            if (ch == '&') {
+                put("&amp;");
+            } else if (ch == '<') {
+                put("&lt;");
+            } else if (ch == '>') {
+                put("&gt;");
+            } else if (ch == '\r') {
+                put("&#x0D;");
+            } else if (Character.isHighSurrogate(ch)) {
+                if ((i + 1 == end) || !Character.isLowSurrogate(str[i + 1])) {
+                    throw new IllegalCharacterDataException("Bad surrogate pair");
+                }
+                put(ch);
+                i++;
+                put(str[i]);
+            } else if (isIllegal(ch)) {
+                throw new IllegalCharacterDataException("0x" + Integer.toHexString(ch).toUpperCase()
+                        + " is not allowed in XML content");
+            } else {
+                put(ch);
+            }
+        }
+    }
+
+    private static boolean isIllegal(final char ch) {
+        if (ch < 0x20) {
+            return (ch != '\t') && (ch != '\n') && (ch != '\r');
+        }
+        return Character.isLowSurrogate(ch) || (ch == 0xFFFE) || (ch == 0xFFFF);
+    }
+
+    private static void verify(final String str) {
+        final int len;
+        int i;
+        char ch;
+
+        len = str.length();
+
+        for (i = 0; i < len; i++) {
+            ch = str.charAt(i);
+            if (Character.isHighSurrogate(ch)) {
+                if ((i + 1 == len) || !Character.isLowSurrogate(str.charAt(i + 1))) {
+                    throw new IllegalCharacterDataException("Bad surrogate pair");
+                }
+                i++;
+            } else if (isIllegal(ch)) {
+                throw new IllegalCharacterDataException("0x" + Integer.toHexString(ch).toUpperCase()
+                        + " is not allowed in XML content");
+            }
+        }
+    }
+
+    /**
+     * Accumulate a token of literal markup.
+     */
+    private void accumulate(final String str) {
+        open = false;
+        token(TEXT);
+        put(str);
+    }
+
+    /**
+     * Accumulate a newline which is the signal of a block start or end.
+     */
+    private void newline() {
+        open = false;
+        token(NEWLINE);
+        put('\n');
+    }
+
+    private void token(final byte kind) {
+        final int[] o;
+        final byte[] k;
+
+        if (count == offsets.length) {
+            o = new int[count * 2];
+            k = new byte[count * 2];
+            System.arraycopy(offsets, 0, o, 0, count);
+            System.arraycopy(kinds, 0, k, 0, count);
+            offsets = o;
+            kinds = k;
+        }
+
+        offsets[count] = length;
+        kinds[count] = kind;
+        count++;
+    }
+
+    private void put(final char ch) {
+        ensure(1);
+        chars[length] = ch;
+        length++;
+    }
+
+    private void put(final String str) {
+        final int len;
+
+        len = str.length();
+        ensure(len);
+        str.getChars(0, len, chars, length);
+        length += len;
+    }
+
+    private void ensure(final int extra) {
+        final char[] c;
+
+        if (length + extra <= chars.length) {
+            return;
+        }
+
+        c = new char[Math.max(chars.length * 2, length + extra)];
+        System.arraycopy(chars, 0, c, 0, length);
+        chars = c;
+    }
+
+    /**
+     * Wrap the accumulated tokens at 70 characters, as QuackSerializer does,
+     * then write them out.
+     */
+    private void writeAccumulated() throws IOException {
+        int i, p, x, width, last;
+
+        if (count == 0) {
+            return;
+        }
+
+        x = 0;
+        p = 0;
+        last = -1;
+
+        for (i = 0; i < count; i++) {
+            if (kinds[i] == NEWLINE) {
+                p = 0;
+                x = 0;
+                last = -1;
+                continue;
+            }
+            if (kinds[i] == SPACE) {
+                p = 0;
+                x++;
+                last = i;
+                continue;
+            }
+
+            if (i + 1 < count) {
+                width = offsets[i + 1] - offsets[i];
+            } else {
+                width = length - offsets[i];
+            }
+            p += width;
+
+            if ((x + width > 70) && (last > 0)) {
+                kinds[last] = NEWLINE;
+                chars[offsets[last]] = '\n';
+                last = -1;
+                x = p;
+            } else {
+                x += width;
+            }
+        }
+
+        encode();
+
+        length = 0;
+        count = 0;
+        open = false;
+    }
+
+    /**
+     * Convert the accumulated characters to UTF-8.
+     */
+    private void encode() throws IOException {
+        int i, ch;
+        char c;
+
+        for (i = 0; i < length; i++) {
+            if (used + 4 > bytes.length) {
+                out.write(bytes, 0, used);
+                used = 0;
+            }
+
+            c = chars[i];
+
+            if (c < 0x80) {
+                bytes[used++] = (byte) c;
+                continue;
+            }
+
+            if (Character.isHighSurrogate(c) && (i + 1 < length) && Character.isLowSurrogate(chars[i + 1])) {
+                ch = Character.toCodePoint(c, chars[i + 1]);
+                i++;
+            } else if (Character.isSurrogate(c)) {
+                ch = '?';
+            } else {
+                ch = c;
+            }
+
+            if (ch < 0x80) {
+                bytes[used++] = (byte) ch;
+            } else if (ch < 0x800) {
+                bytes[used++] = (byte) (0xC0 | (ch >> 6));
+                bytes[used++] = (byte) (0x80 | (ch & 0x3F));
+            } else if (ch < 0x10000) {
+                bytes[used++] = (byte) (0xE0 | (ch >> 12));
+                bytes[used++] = (byte) (0x80 | ((ch >> 6) & 0x3F));
+                bytes[used++] = (byte) (0x80 | (ch & 0x3F));
+            } else {
+                bytes[used++] = (byte) (0xF0 | (ch >> 18));
+                bytes[used++] = (byte) (0x80 | ((ch >> 12) & 0x3F));
+                bytes[used++] = (byte) (0x80 | ((ch >> 6) & 0x3F));
+                bytes[used++] = (byte) (0x80 | (ch & 0x3F));
+            }
+        }
+    }
+
+    /**
+     * Write out the end of the document, and flush everything to the
+     * OutputStream.
+     */
+    public void finish() throws IOException {
+        closeBlock();
+
+        accumulate("</quack>");
+        newline();
+        writeAccumulated();
+
+        out.write(bytes, 0, used);
+        used = 0;
+        out.flush();
+    }
+
+    /**
+     * Carry an IOException out through a SpanVisitor.
+     */
+    @SuppressWarnings("serial")
+    private static class WriterException extends RuntimeException
+    {
+        private final IOException ioe;
+
+        private WriterException(IOException ioe) {
+            this.ioe = ioe;
+        }
+    }
+}
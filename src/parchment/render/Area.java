@@ -18,21 +18,16 @@
  */
 package parchment.render;
 
-import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 
 import org.freedesktop.cairo.Context;
 import org.freedesktop.cairo.Matrix;
-import org.freedesktop.cairo.MimeType;
-import org.freedesktop.cairo.Pattern;
-import org.freedesktop.cairo.Surface;
-import org.gnome.gdk.Pixbuf;
 import org.gnome.pango.LayoutLine;
 import org.gnome.pango.Rectangle;
 import org.gnome.rsvg.Handle;
 
+import quill.client.Profiler;
 import quill.textbase.Origin;
 
 /**
@@ -83,8 +78,14 @@ abstract class Area
 
     /**
      * Draw this Area onto Context cr at top corner position y.
+     * 
+     * @param resolution
+     *            the number of device pixels per point on the target
+     *            Surface, used to pick the size at which images are decoded.
+     *            Pass 0 when drawing for print, in which case images are used
+     *            at their full resolution.
      */
-    abstract void draw(Context cr, double y);
+    abstract void draw(Context cr, double y, double resolution);
 
     /**
      * Create a CompositeArea which can be drawn as a single Area from the
@@ -130,7 +131,7 @@ final class TextArea extends Area
         this.error = error;
     }
 
-    void draw(final Context cr, final double y) {
+    void draw(final Context cr, final double y, final double resolution) {
         cr.moveTo(x, y + a);
 
         if (error) {
@@ -179,43 +180,20 @@ final class ImageArea extends Area
         this.scale = scale;
     }
 
-    /*
-     * Modelled on java-gnome ValdiateCairoInternals.readFileIntoArray()
-     */
-    private static byte[] readFileIntoArray(String filename) throws IOException {
-        final File source;
-        final int length;
-        final FileInputStream fis;
-        final byte[] data;
-        int actual;
-
-        source = new File(filename);
-        length = (int) source.length();
-
-        data = new byte[length];
-
-        fis = new FileInputStream(source);
-
-        actual = 0;
-        while (actual != length) {
-            actual += fis.read(data, actual, length - actual);
-        }
-
-        return data;
-    }
-
-    void draw(final Context cr, final double y) {
+    void draw(final Context cr, final double y, final double resolution) {
         final Matrix matrix;
         final Handle graphic;
-        final byte[] data;
-        final Pixbuf pixbuf;
-        final Pattern pattern;
-        final Surface implicit;
+        final CachedImage image;
+        final Raster raster;
+        final int width, height;
+        final Profiler.Mark mark;
 
         if (filename == null) {
             return;
         }
 
+        mark = Profiler.begin();
+
         try {
             cr.save();
 
@@ -230,25 +208,53 @@ final class ImageArea extends Area
             matrix = new Matrix();
 
             matrix.translate(x, y);
-            matrix.scale(scale, scale);
 
-            cr.transform(matrix);
+            image = ImageCache.lookup(filename);
 
             if (filename.endsWith(".svg")) {
-                graphic = new Handle(filename);
-                cr.showHandle(graphic);
-            } else if (filename.endsWith(".jpg")) {
-                data = readFileIntoArray(filename);
-                pixbuf = new Pixbuf(data);
-                cr.setSource(pixbuf, 0, 0);
-                pattern = cr.getSource();
-                implicit = pattern.getSurface();
-                implicit.setMimeData(MimeType.JPEG, data);
-                cr.paint();
+                /*
+                 * SVG graphics are parsed once and the Handle kept; it's
+                 * drawn through the scale Matrix. The Handle is shared by
+                 * every render in progress, and librsvg doesn't allow it to
+                 * be drawn by two threads at once, so hold the image's lock
+                 * while doing so.
+                 */
+                matrix.scale(scale, scale);
+                cr.transform(matrix);
+
+                graphic = ImageCache.getHandle(image);
+                synchronized (image) {
+                    cr.showHandle(graphic);
+                }
             } else {
-                pixbuf = new Pixbuf(filename);
-                cr.setSource(pixbuf, 0, 0);
-                cr.paint();
+                /*
+                 * Raster images are decoded once and cached rather than on
+                 * every draw. When going to screen there's no point decoding
+                 * (say) a 24 megapixel photo only to have Cairo scale it
+                 * down to a few hundred pixels, so ask for it at the size it
+                 * will actually appear. For print we use the original (along
+                 * with the JPEG data, if that's what it is, for the benefit
+                 * of PDF output).
+                 */
+                if (resolution > 0.0) {
+                    width = (int) Math.ceil(image.width * scale * resolution);
+                    height = (int) Math.ceil(image.height * scale * resolution);
+                    raster = ImageCache.getRaster(image, width, height);
+                } else {
+                    raster = ImageCache.getRaster(image);
+                }
+
+                matrix.scale(scale * image.width / raster.width, scale * image.height / raster.height);
+                cr.transform(matrix);
+
+                /*
+                 * Likewise the Surface; painting from it to a PDF can attach
+                 * a snapshot to it.
+                 */
+                synchronized (image) {
+                    cr.setSource(raster.surface, 0, 0);
+                    cr.paint();
+                }
             }
 
             /*
@@ -264,6 +270,7 @@ final class ImageArea extends Area
             // bad news, but swollow
         } finally {
             cr.restore();
+            Profiler.end(mark, "draw", "image");
         }
     }
 }
@@ -274,7 +281,7 @@ final class BlankArea extends Area
         super(origin, 0, height);
     }
 
-    void draw(Context cr, double y) {
+    void draw(Context cr, double y, double resolution) {
     // nothing :)
     }
 }
@@ -285,7 +292,7 @@ final class PageBreakArea extends Area
         super(origin, 0, 0);
     }
 
-    void draw(Context cr, double y) {
+    void draw(Context cr, double y, double resolution) {
     // nothing :)
     }
 }
@@ -306,7 +313,7 @@ final class CompositeArea extends Area
         children = areas;
     }
 
-    void draw(Context cr, double y) {
+    void draw(Context cr, double y, double resolution) {
         int i;
         Area area;
         double d;
@@ -316,7 +323,7 @@ final class CompositeArea extends Area
         for (i = 0; i < children.length; i++) {
             area = children[i];
 
-            area.draw(cr, d);
+            area.draw(cr, d, resolution);
             d += area.height;
         }
     }
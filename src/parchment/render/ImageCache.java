@@ -0,0 +1,427 @@
+/*
+ * Quill and Parchment, a WYSIWYN document editor and rendering engine.
+ *
+ * Copyright © 2011 Operational Dynamics Consulting, Pty Ltd
+ *
+ * The code in this file, and the program it is a part of, is made available
+ * to you by its authors as open source software: you can redistribute it
+ * and/or modify it under the terms of the GNU General Public License version
+ * 2 ("GPL") as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GPL for more details.
+ *
+ * You should have received a copy of the GPL along with this program. If not,
+ * see http://www.gnu.org/licenses/. The authors of this program may be
+ * contacted through http://research.operationaldynamics.com/projects/quill/.
+ */
+package parchment.render;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+import org.freedesktop.cairo.Context;
+import org.freedesktop.cairo.Format;
+import org.freedesktop.cairo.ImageSurface;
+import org.freedesktop.cairo.MimeType;
+import org.freedesktop.cairo.Surface;
+import org.gnome.gdk.Pixbuf;
+import org.gnome.rsvg.Handle;
+
+import quill.client.Profiler;
+
+/**
+ * Cache of images loaded from disk, so that drawing a page (which happens
+ * on every expose of the preview) doesn't have to re-read and re-decode
+ * every image on it.
+ *
+ * <p>
+ * Entries are keyed by filename, and are only valid as long as the file's
+ * modification time and size are unchanged. The file dimensions are cached
+ * for layout; the decoded image is kept as a Cairo image Surface ready to be
+ * painted, or in the case of SVG graphics, as a parsed librsvg Handle. The
+ * cache is bounded by an approximate number of bytes, evicting the least
+ * recently used images first.
+ *
+ * @author Andrew Cowie
+ */
+/*
+ * Shared by all RenderEngines, hence static and synchronized.
+ */
+final class ImageCache
+{
+    private ImageCache() {}
+
+    /**
+     * Approximately how much memory, in bytes, decoded images may occupy.
+     */
+    private static final long BUDGET = 64 * 1024 * 1024;
+
+    /**
+     * Granularity, in pixels, of the widths at which reduced images are
+     * decoded.
+     */
+    private static final int QUANTUM = 64;
+
+    /**
+     * How many reduced variants to keep for each image.
+     */
+    private static final int VARIANTS = 3;
+
+    private static final LinkedHashMap<String, CachedImage> images;
+
+    /**
+     * The sum of the costs of the images in the cache.
+     */
+    private static long total;
+
+    static {
+        images = new LinkedHashMap<String, CachedImage>(16, 0.75f, true);
+        total = 0;
+    }
+
+    /**
+     * Get the cache entry for the given file, (re)loading its information if
+     * it's not present or if the file has changed.
+     */
+    static synchronized CachedImage lookup(final String filename) throws IOException {
+        final File source;
+        final long modified, length;
+        CachedImage image;
+
+        source = new File(filename);
+        if (!source.exists()) {
+            throw new FileNotFoundException(filename);
+        }
+
+        modified = source.lastModified();
+        length = source.length();
+
+        image = images.get(filename);
+
+        if (image != null) {
+            if ((image.modified == modified) && (image.length == length)) {
+                return image;
+            }
+            images.remove(filename);
+            discard(image);
+        }
+
+        image = new CachedImage(filename, modified, length);
+        images.put(filename, image);
+
+        return image;
+    }
+
+    /**
+     * Get the full resolution decoded raster image, ready for use as a
+     * source. If it is a JPEG then the original bytes will have been attached
+     * to the Surface so that PDF output can embed them directly.
+     */
+    static synchronized Raster getRaster(final CachedImage image) throws IOException {
+        final byte[] data;
+        final Pixbuf pixbuf;
+        final Raster raster;
+        final Profiler.Mark mark;
+
+        if (image.full != null) {
+            return image.full;
+        }
+
+        mark = Profiler.begin();
+
+        if (image.filename.endsWith(".jpg")) {
+            data = readFileIntoArray(image.filename);
+            pixbuf = new Pixbuf(data);
+        } else {
+            data = null;
+            pixbuf = new Pixbuf(image.filename);
+        }
+
+        raster = new Raster(pixbuf);
+
+        if (data != null) {
+            raster.surface.setMimeData(MimeType.JPEG, data);
+            raster.cost += data.length;
+        }
+
+        Profiler.end(mark, "decode", "full");
+
+        image.full = raster;
+        charge(image, raster.cost);
+        evict(image);
+
+        return raster;
+    }
+
+    /**
+     * Get the decoded raster image at (approximately) the requested size,
+     * for drawing to screen. The image is decoded at that size rather than
+     * at full resolution and then scaled. You'll get a Raster at least as
+     * big as requested, and never bigger than the original.
+     */
+    /*
+     * The requested width is rounded up to a multiple of QUANTUM pixels so
+     * that small changes in zoom (ie, resizing the window) reuse the same
+     * variant. A few recent variants are kept per image.
+     */
+    static synchronized Raster getRaster(final CachedImage image, final int width, final int height)
+            throws IOException {
+        final int w, h;
+        final Integer key;
+        final Pixbuf pixbuf;
+        Raster raster;
+        final Iterator<Raster> iter;
+        final Profiler.Mark mark;
+
+        w = ((width + QUANTUM - 1) / QUANTUM) * QUANTUM;
+
+        if ((w >= image.width) || (height >= image.height)) {
+            return getRaster(image);
+        }
+
+        if (image.reduced == null) {
+            image.reduced = new LinkedHashMap<Integer, Raster>(4, 0.75f, true);
+        }
+
+        key = Integer.valueOf(w);
+        raster = image.reduced.get(key);
+
+        if (raster != null) {
+            return raster;
+        }
+
+        h = (int) Math.ceil((double) image.height * w / image.width);
+
+        mark = Profiler.begin();
+        pixbuf = new Pixbuf(image.filename, w, h, true);
+        raster = new Raster(pixbuf);
+        Profiler.end(mark, "decode", "reduced");
+
+        image.reduced.put(key, raster);
+        charge(image, raster.cost);
+
+        if (image.reduced.size() > VARIANTS) {
+            iter = image.reduced.values().iterator();
+            raster = iter.next();
+            iter.remove();
+
+            charge(image, -raster.cost);
+        }
+
+        evict(image);
+
+        return image.reduced.get(key);
+    }
+
+    /**
+     * Get the parsed SVG graphic. Creating a Handle has librsvg parse the XML
+     * and build its render tree, which is expensive for complex diagrams;
+     * once done it can be drawn (with whatever transformation is in effect)
+     * as many times as necessary.
+     */
+    static synchronized Handle getHandle(final CachedImage image) throws IOException {
+        final Handle graphic;
+        final Profiler.Mark mark;
+
+        if (image.graphic != null) {
+            return image.graphic;
+        }
+
+        mark = Profiler.begin();
+        graphic = new Handle(image.filename);
+        Profiler.end(mark, "decode", "svg");
+
+        image.graphic = graphic;
+
+        /*
+         * There's no way to ask librsvg how much memory the render tree
+         * occupies; a few times the size of the XML is a fair guess.
+         */
+        charge(image, image.length * 4);
+        evict(image);
+
+        return graphic;
+    }
+
+    /**
+     * Drop least recently used images until we're back under budget, but
+     * never the one just loaded.
+     */
+    private static void evict(final CachedImage keep) {
+        final Iterator<CachedImage> iter;
+        CachedImage image;
+
+        iter = images.values().iterator();
+
+        while ((total > BUDGET) && iter.hasNext()) {
+            image = iter.next();
+            if (image == keep) {
+                continue;
+            }
+            if (image.cost == 0) {
+                continue;
+            }
+            iter.remove();
+            discard(image);
+        }
+    }
+
+    /**
+     * Account for a change in the memory used by the given image. An image
+     * which has been evicted (but which a caller still had hold of from
+     * lookup()) is no longer counted, or total would grow with no way of
+     * ever coming down again.
+     */
+    private static void charge(final CachedImage image, final long cost) {
+        if (images.get(image.filename) != image) {
+            return;
+        }
+        image.cost += cost;
+        total += cost;
+    }
+
+    /**
+     * Forget an image that has been removed from the cache. Whoever is still
+     * drawing it keeps the Raster or Handle they already have.
+     */
+    private static void discard(final CachedImage image) {
+        total -= image.cost;
+        image.cost = 0;
+        image.full = null;
+        image.reduced = null;
+        image.graphic = null;
+    }
+
+    /*
+     * Modelled on java-gnome ValdiateCairoInternals.readFileIntoArray()
+     */
+    private static byte[] readFileIntoArray(String filename) throws IOException {
+        final File source;
+        final int length;
+        final FileInputStream fis;
+        final byte[] data;
+        int actual, num;
+
+        source = new File(filename);
+        length = (int) source.length();
+
+        data = new byte[length];
+
+        fis = new FileInputStream(source);
+
+        try {
+            actual = 0;
+            while (actual != length) {
+                num = fis.read(data, actual, length - actual);
+                if (num == -1) {
+                    throw new IOException("Premature end of file reading " + filename);
+                }
+                actual += num;
+            }
+        } finally {
+            fis.close();
+        }
+
+        return data;
+    }
+}
+
+/**
+ * An image file as known to the ImageCache. The Surfaces and Handle held
+ * here are handed out to every caller, so they must only be drawn while
+ * holding the lock on this object.
+ *
+ * @author Andrew Cowie
+ */
+final class CachedImage
+{
+    final String filename;
+
+    final long modified;
+
+    final long length;
+
+    /**
+     * Dimensions of the image, in pixels, as reported by the file.
+     */
+    final int width;
+
+    final int height;
+
+    /**
+     * The decoded image at full resolution, or null if it hasn't been needed
+     * yet. Managed by ImageCache.
+     */
+    Raster full;
+
+    /**
+     * Reduced resolution decodings of the image, keyed by width, or null if
+     * none have been needed yet. Managed by ImageCache.
+     */
+    LinkedHashMap<Integer, Raster> reduced;
+
+    /**
+     * The parsed graphic, if this is an SVG and it has been drawn. Managed
+     * by ImageCache.
+     */
+    Handle graphic;
+
+    /**
+     * Approximate bytes this entry occupies; 0 until something is loaded.
+     */
+    long cost;
+
+    CachedImage(final String filename, final long modified, final long length) throws IOException {
+        this.filename = filename;
+        this.modified = modified;
+        this.length = length;
+        this.width = Pixbuf.getFileInfoWidth(filename);
+        this.height = Pixbuf.getFileInfoHeight(filename);
+        this.full = null;
+        this.reduced = null;
+        this.graphic = null;
+        this.cost = 0;
+    }
+}
+
+/**
+ * A decoded image, as a Cairo Surface ready to be used as a source, along
+ * with its size in pixels.
+ *
+ * @author Andrew Cowie
+ */
+final class Raster
+{
+    final Surface surface;
+
+    final int width;
+
+    final int height;
+
+    /**
+     * Approximate bytes this Raster occupies.
+     */
+    long cost;
+
+    Raster(final Pixbuf pixbuf) {
+        final ImageSurface image;
+        final Context cr;
+
+        width = pixbuf.getWidth();
+        height = pixbuf.getHeight();
+
+        image = new ImageSurface(Format.ARGB32, width, height);
+        cr = new Context(image);
+        cr.setSource(pixbuf, 0, 0);
+        cr.paint();
+
+        surface = image;
+        cost = width * height * 4L;
+    }
+}
@@ -55,6 +55,21 @@ public class NovelRenderEngine extends RenderEngine
         return 20.0;
     }
 
+    /*
+     * The title and author don't change from page to page, so their Layouts
+     * are built once per render and handed back for every page.
+     */
+    private Layout title;
+
+    private Layout author;
+
+    protected void specifyFonts(final Context cr) {
+        super.specifyFonts(cr);
+
+        title = null;
+        author = null;
+    }
+
     /*
      * Put the current page number centered at the bottom of the page.
      */
@@ -62,7 +77,7 @@ public class NovelRenderEngine extends RenderEngine
         final Layout result;
         final String text;
 
-        result = new Layout(cr);
+        result = createLayout(cr);
         result.setFontDescription(serifFace.desc);
 
         text = Integer.toString(pageNumber);
@@ -77,18 +92,19 @@ public class NovelRenderEngine extends RenderEngine
     protected Layout getHeaderLeft(final Context cr, final int pageNumber) {
         final Folio folio;
         final Metadata meta;
-        final String title;
-        final Layout result;
+        final String str;
 
-        folio = super.getFolio();
-        meta = folio.getMetadata();
-        title = meta.getDocumentTitle();
+        if (title == null) {
+            folio = super.getFolio();
+            meta = folio.getMetadata();
+            str = meta.getDocumentTitle();
 
-        result = new Layout(cr);
-        result.setFontDescription(sansFace.desc);
-        result.setMarkup("<i>" + title + "</i>");
+            title = createLayout(cr);
+            title.setFontDescription(sansFace.desc);
+            title.setMarkup("<i>" + str + "</i>");
+        }
 
-        return result;
+        return title;
     }
 
     /*
@@ -97,17 +113,18 @@ public class NovelRenderEngine extends RenderEngine
     protected Layout getHeaderRight(final Context cr, final int pageNumber) {
         final Folio folio;
         final Metadata meta;
-        final String author;
-        final Layout result;
+        final String str;
 
-        folio = super.getFolio();
-        meta = folio.getMetadata();
-        author = meta.getAuthorName();
+        if (author == null) {
+            folio = super.getFolio();
+            meta = folio.getMetadata();
+            str = meta.getAuthorName();
 
-        result = new Layout(cr);
-        result.setFontDescription(sansFace.desc);
-        result.setMarkup(author);
+            author = createLayout(cr);
+            author.setFontDescription(sansFace.desc);
+            author.setMarkup(str);
+        }
 
-        return result;
+        return author;
     }
 }
@@ -22,6 +22,8 @@ import java.util.ArrayList;
 
 import org.freedesktop.cairo.Context;
 
+import quill.client.Profiler;
+
 /**
  * A list of Areas that can be rendered as (have been collected as?) a page.
  * 
@@ -70,15 +72,25 @@ class Page
             this.area = area;
         }
 
-        private void render(final Context cr) {
-            area.draw(cr, y);
+        private void render(final Context cr, final double resolution) {
+            area.draw(cr, y, resolution);
         }
     }
 
-    void render(final Context cr) {
+    /**
+     * Draw the Areas on this Page. See {@link Area#draw(Context, double, double)
+     * Area.draw()} regarding resolution.
+     */
+    void render(final Context cr, final double resolution) {
+        final Profiler.Mark mark;
+
+        mark = Profiler.begin();
+
         for (Flow f : areas) {
-            f.render(cr);
+            f.render(cr, resolution);
         }
+
+        Profiler.end(mark, "draw", "page");
     }
 
     public String toString() {
@@ -51,7 +51,7 @@ public class PaperRenderEngine extends RenderEngine
         final Layout result;
         final String text;
 
-        result = new Layout(cr);
+        result = createLayout(cr);
         result.setFontDescription(serifFace.desc);
 
         text = Integer.toString(pageNumber);
@@ -21,14 +21,12 @@ package parchment.render;
 import java.io.IOException;
 import java.lang.reflect.Constructor;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.TreeMap;
 
 import org.freedesktop.cairo.Context;
 import org.freedesktop.cairo.FontOptions;
 import org.freedesktop.cairo.Surface;
-import org.gnome.gdk.Pixbuf;
-import org.gnome.gtk.PaperSize;
-import org.gnome.gtk.Unit;
 import org.gnome.pango.Attribute;
 import org.gnome.pango.AttributeList;
 import org.gnome.pango.BackgroundColorAttribute;
@@ -46,11 +44,13 @@ import org.gnome.pango.Weight;
 import org.gnome.pango.WeightAttribute;
 import org.gnome.pango.WrapMode;
 
+import parchment.manuscript.Chapter;
 import parchment.manuscript.Manuscript;
 import parchment.manuscript.RendererNotFoundException;
 import parchment.manuscript.Stylesheet;
 import parchment.manuscript.UnsupportedValueException;
 import quill.client.ApplicationException;
+import quill.client.Profiler;
 import quill.textbase.AttributionSegment;
 import quill.textbase.ChapterSegment;
 import quill.textbase.Common;
@@ -63,7 +63,6 @@ import quill.textbase.HeadingSegment;
 import quill.textbase.ImageSegment;
 import quill.textbase.LeaderSegment;
 import quill.textbase.ListitemSegment;
-import quill.textbase.MarkerSpan;
 import quill.textbase.Markup;
 import quill.textbase.NormalSegment;
 import quill.textbase.Origin;
@@ -99,8 +98,17 @@ import static quill.textbase.Span.createSpan;
  * There's a bit too much in this class. It now seems to be both the actual
  * layout engine, as well as the harness for driving a rendering run. Adding
  * caching to this makes this even worse.
+ *
+ * To keep that manageable, an engine as returned by createRenderer() is only
+ * configuration: the settings from the Stylesheet, and the results published
+ * by previous renders. Each render is carried out by a session, a private
+ * copy of the engine (so that it is the same subclass, with the same
+ * overrides) in which all the fields used while laying out (fonts, Layouts,
+ * the Origin being composed, the Page being filled, temporarily adjusted
+ * margins, etc) are its own. Renders can therefore proceed concurrently on
+ * different threads without locking.
  */
-public abstract class RenderEngine
+public abstract class RenderEngine implements Cloneable
 {
     private RenderSettings settings;
 
@@ -134,25 +142,96 @@ public abstract class RenderEngine
     private Typeface smallFace;
 
     /**
-     * This chapter's content, as prepared into Areas.
+     * The hinting options applied to every Layout created during a render.
+     * Built once per render rather than once per paragraph.
      */
-    private ArrayList<Area> areas;
+    private FontOptions options;
 
     /**
-     * This chapter's content, as flowed into Pages.
+     * A Layout used only to measure fonts when creating Typefaces. Unlike
+     * the Layouts backing TextAreas (whose LayoutLines are held until the
+     * Page is drawn) this one can be reset and reused.
      */
-    private ArrayList<Page> pages;
+    private Layout measure;
 
     /**
-     * After a render, what page are we on?
+     * Typefaces derived from the base faces (titles, leaders, captions,
+     * etc) keyed by purpose, so they are measured once per render rather
+     * than once per use.
+     */
+    private HashMap<String, Typeface> derived;
+
+    /**
+     * Typefaces already measured, keyed by font and spacing, shared by all
+     * engines and so by all the threads of a batch render. The measurement
+     * only depends on the font and on the FontOptions, which are the same
+     * for every render. Typeface is immutable, and callers copy its
+     * FontDescription before changing anything.
+     */
+    private static final HashMap<String, Typeface> faces;
+
+    static {
+        faces = new HashMap<String, Typeface>(32);
+    }
+
+    /**
+     * Device pixels per point on the target Surface, or 0 if rendering for
+     * print. Only meaningful in a session; it is passed in by whoever asked
+     * for the render, never kept on the engine, as the engine is shared.
+     */
+    private double resolution;
+
+    /**
+     * Translator for the smart typography substitutions, reused for each
+     * paragraph.
+     */
+    private SmartTypography typography;
+
+    /**
+     * Where Areas go as they are prepared from this chapter's content.
+     */
+    private PageFlow flow;
+
+    /**
+     * Keep each chapter's Areas so a later render of a Folio with some of
+     * the same Components can reuse them?
+     */
+    private volatile boolean retain;
+
+    /**
+     * The Components laid out last time, and the Areas prepared from them.
+     * Only used if retaining. A session reads this from the engine when it
+     * starts, and the engine takes the session's when it finishes.
      */
-    private int pageIndex;
+    private volatile Chapters retained;
 
     /**
-     * Where is a given (Segment, offset) pair?
+     * If retaining, the Areas of the chapter currently being prepared.
+     */
+    private ArrayList<Area> recording;
+
+    /**
+     * In a session, this chapter's content, as flowed into Pages.
+     */
+    private ArrayList<Page> pages;
+
+    /**
+     * In a session, where is a given (Segment, offset) pair?
      */
     private TreeMap<Origin, Page> lookup;
 
+    /**
+     * The most recent layout done for a single page render, kept by the
+     * engine so that subsequent pages of the same Folio can be drawn without
+     * laying out again.
+     */
+    private volatile Pagination published;
+
+    /**
+     * After a render, what page are we on?
+     */
+    private volatile int pageIndex;
+
     /**
      * The index that the present Series is into the Folio (for composing
      * Origins).
@@ -177,14 +256,35 @@ public abstract class RenderEngine
      */
     protected RenderEngine() {}
 
-    private void configure(Stylesheet style) throws UnsupportedValueException {
-        final PaperSize paper;
+    /**
+     * Create a session in which to carry out a render.
+     */
+    private RenderEngine createSession(final double resolution) {
+        final RenderEngine session;
+
+        try {
+            session = (RenderEngine) super.clone();
+        } catch (CloneNotSupportedException cnse) {
+            throw new AssertionError();
+        }
+
+        session.resolution = resolution;
+        session.typography = new SmartTypography();
+        session.folio = null;
+        session.flow = null;
+        session.recording = null;
+        session.pages = null;
+        session.lookup = null;
+        session.published = null;
 
+        return session;
+    }
+
+    private void configure(Stylesheet style) throws UnsupportedValueException {
         settings = new RenderSettings(style);
 
-        paper = settings.getPaper();
-        pageWidth = paper.getWidth(Unit.POINTS);
-        pageHeight = paper.getHeight(Unit.POINTS);
+        pageWidth = settings.getPaperWidth();
+        pageHeight = settings.getPaperHeight();
 
         topMargin = settings.getMarginTop();
         bottomMargin = settings.getMarginBottom();
@@ -196,129 +296,318 @@ public abstract class RenderEngine
         return settings;
     }
 
+    /**
+     * Have the engine keep the Areas it prepares for each chapter, and reuse
+     * them in a subsequent render if the Component at that position in the
+     * Folio is the same. Since Components are immutable, this means only
+     * the chapters that were changed need to be laid out again. Chapters
+     * with generated content (endnotes, references) are always redone.
+     * 
+     * <p>
+     * This is for long running renderers that repeatedly output the same
+     * document as it is edited; the cost is that whole-document renders are
+     * no longer bounded in memory by a page's worth of layout.
+     */
+    public void setRetainChapters(final boolean retain) {
+        this.retain = retain;
+        this.retained = null;
+    }
+
     /**
      * Given a Context, have the rendering engine to draw to it. This assumes
      * that the target Surface either a) has the size as the PaperSize passed
      * to the constructor, or b) has been scaled to that size.
+     * 
+     * <p>
+     * If this engine has already laid out the given Folio (for instance,
+     * because it is the one drawing the preview) then the existing pages are
+     * simply painted to the new target. Images are always drawn at full
+     * resolution.
+     */
+    /*
+     * Reusing the layout across targets is safe because metrics hinting is
+     * off; glyph positions don't depend on the device they were measured
+     * against.
      */
     public void render(final Context cr, final Folio folio) {
+        final Pagination done;
+        final RenderEngine session;
+
         if (folio == null) {
             return;
         }
-        this.folio = folio;
 
-        synchronized (this) {
-            specifyFonts(cr);
-            processSegmentsIntoAreas(cr);
-            flowAreasIntoPages(cr);
-            renderAllPages(cr);
+        done = published;
+
+        if ((done != null) && (done.folio == folio)) {
+            renderAllPages(cr, done);
+        } else {
+            session = createSession(0.0);
+            session.streamAllPages(cr, folio);
+
+            if (retain) {
+                retained = session.retained;
+            }
         }
     }
 
-    /*
-     * TODO needs to act to prepare and flow, caching the result so that
-     * subsequent calls here don't re-do everything.
+    /**
+     * Draw a single page. The Folio is only laid out if it isn't the one
+     * most recently laid out by this engine; since Folios are immutable,
+     * paging back and forth through the same one only costs the drawing.
+     * 
+     * @param pageNum
+     *            the page to draw, 1 origin.
      */
     public void render(final Context cr, final Folio folio, final int pageNum) {
+        render(cr, folio, pageNum, 0.0);
+    }
+
+    /**
+     * Draw a single page, as above, to a Surface with the given number of
+     * device pixels per point, so that images can be decoded at the size
+     * they'll actually appear. A resolution of 0 means images are used at
+     * their full resolution, which is what you want for PDF and print.
+     */
+    public void render(final Context cr, final Folio folio, final int pageNum, final double resolution) {
+        final Pagination done;
+
         if (folio == null) {
             return;
         }
-        this.folio = folio;
 
-        synchronized (this) {
-            specifyFonts(cr);
-            processSegmentsIntoAreas(cr);
-            flowAreasIntoPages(cr);
-            renderSinglePage(cr, pageNum);
-        }
+        done = layoutIfNecessary(cr, folio);
+        renderSinglePage(cr, done.pages.get(pageNum - 1), resolution);
     }
 
     public void render(Context cr, Folio folio, Origin cursor) {
+        final Pagination done;
+
         if (folio == null) {
             return;
         }
-        this.folio = folio;
 
         if (cursor == null) {
             return;
         }
 
-        synchronized (this) {
-            specifyFonts(cr);
-            processSegmentsIntoAreas(cr);
-            flowAreasIntoPages(cr);
-            renderSinglePage(cr, cursor);
+        done = layoutIfNecessary(cr, folio);
+        renderSinglePage(cr, done.locatePage(cursor), 0.0);
+    }
+
+    /**
+     * Find the page (0 origin) that the given Origin is on, laying out the
+     * Folio first if necessary.
+     */
+    public int findPage(final Context cr, final Folio folio, final Origin cursor) {
+        final Pagination done;
+        final Page page;
+
+        done = layoutIfNecessary(cr, folio);
+        page = done.locatePage(cursor);
+
+        return page.getPageNumber() - 1;
+    }
+
+    /**
+     * Get the layout of the given Folio, doing it in a new session if the
+     * one most recently published isn't for this Folio.
+     */
+    /*
+     * If two threads race to lay out the same Folio, both do the work and
+     * the last one wins; that's wasteful but harmless.
+     */
+    private Pagination layoutIfNecessary(final Context cr, final Folio folio) {
+        final RenderEngine session;
+        Pagination done;
+
+        done = published;
+        if ((done != null) && (done.folio == folio)) {
+            return done;
+        }
+
+        session = createSession(0.0);
+        session.layoutAllPages(cr, folio);
+
+        done = new Pagination(folio, session.pages, session.lookup);
+        published = done;
+
+        if (retain) {
+            retained = session.retained;
         }
+
+        return done;
     }
 
-    private void renderAllPages(Context cr) {
+    /**
+     * In a session, lay out the Folio into Pages.
+     */
+    private void layoutAllPages(final Context cr, final Folio folio) {
+        this.folio = folio;
+
+        prepareLayouts(cr);
+
+        pages = new ArrayList<Page>(8);
+        lookup = new TreeMap<Origin, Page>();
+
+        flow = new PageFlow(cr, false);
+        processSegmentsIntoAreas(cr);
+        flow.finish();
+        flow = null;
+    }
+
+    /**
+     * In a session, lay out the Folio and draw each Page as soon as it is
+     * full, then forget it. Nothing is retained, so memory use is bounded by
+     * the contents of a page rather than the size of the document.
+     */
+    private void streamAllPages(final Context cr, final Folio folio) {
+        this.folio = folio;
+
+        prepareLayouts(cr);
+
+        flow = new PageFlow(cr, true);
+        processSegmentsIntoAreas(cr);
+        flow.finish();
+        flow = null;
+
+        finishSurface(cr.getTarget());
+    }
+
+    private static void finishSurface(final Surface surface) {
+        final Profiler.Mark mark;
+
+        mark = Profiler.begin();
+        surface.finish();
+        Profiler.end(mark, "output", "finish");
+    }
+
+    private static void showPage(final Surface surface) {
+        final Profiler.Mark mark;
+
+        mark = Profiler.begin();
+        surface.showPage();
+        Profiler.end(mark, "output", "showPage");
+    }
+
+    /*
+     * Whole document output is always at full resolution.
+     */
+    private static void renderAllPages(final Context cr, final Pagination done) {
         final Surface surface;
         final int I;
         int i;
         Page page;
 
-        I = pages.size();
+        I = done.pages.size();
         surface = cr.getTarget();
 
         for (i = 0; i < I; i++) {
-            page = pages.get(i);
+            page = done.pages.get(i);
 
             /*
              * Draw the page.
              */
 
-            page.render(cr);
+            page.render(cr, 0.0);
 
             /*
              * Flush the page out, and begin a new one.
              */
 
             if (i < I - 1) {
-                surface.showPage();
+                showPage(surface);
             }
         }
 
-        surface.finish();
+        finishSurface(surface);
     }
 
-    private void renderSinglePage(final Context cr, final int pageNum) {
+    /*
+     * We flush rather than finish the Surface here; a single page is drawn
+     * for the preview, either directly to the screen or into a Surface that
+     * is kept and painted from.
+     */
+    private void renderSinglePage(final Context cr, final Page page, final double resolution) {
         final Surface surface;
-        final Page page;
 
         surface = cr.getTarget();
 
-        page = pages.get(pageNum - 1);
-        page.render(cr);
+        page.render(cr, resolution);
 
-        surface.finish();
+        surface.flush();
 
-        pageIndex = pageNum - 1;
+        pageIndex = page.getPageNumber() - 1;
     }
 
-    private void renderSinglePage(final Context cr, final Origin target) {
-        final Surface surface;
-        final Origin key;
-        final Page page;
+    /**
+     * The result of laying out a Folio: its Pages, and the index by Origin
+     * into them. Once published, it isn't changed.
+     */
+    private static final class Pagination
+    {
+        private final Folio folio;
 
-        surface = cr.getTarget();
+        private final ArrayList<Page> pages;
 
-        key = lookup.floorKey(target);
-        if (key != null) {
-            page = lookup.get(key);
-        } else {
-            /*
-             * Assuming there's a (0,0) Origin for the first page, we
-             * shouldn't ever get here. But guard against it as the Area ->
-             * Origin:Page logic is still a little raw.
-             */
-            page = pages.get(0);
+        private final TreeMap<Origin, Page> lookup;
+
+        private Pagination(final Folio folio, final ArrayList<Page> pages, final TreeMap<Origin, Page> lookup) {
+            this.folio = folio;
+            this.pages = pages;
+            this.lookup = lookup;
         }
 
-        page.render(cr);
+        private Page locatePage(final Origin target) {
+            final Origin key;
+            final Page page;
 
-        surface.finish();
+            key = lookup.floorKey(target);
+            if (key != null) {
+                page = lookup.get(key);
+            } else {
+                /*
+                 * Assuming there's a (0,0) Origin for the first page, we
+                 * shouldn't ever get here. But guard against it as the Area
+                 * -> Origin:Page logic is still a little raw.
+                 */
+                page = pages.get(0);
+            }
 
-        pageIndex = page.getPageNumber() - 1;
+            return page;
+        }
+    }
+
+    /**
+     * Chapters retained from a previous render; see
+     * {@link RenderEngine#setRetainChapters(boolean) setRetainChapters()}. A
+     * null entry in areas means that chapter can't be reused.
+     */
+    private static final class Chapters
+    {
+        private final Component[] components;
+
+        private final Area[][] areas;
+
+        private Chapters(final int size) {
+            this.components = new Component[size];
+            this.areas = new Area[size][];
+        }
+    }
+
+    /**
+     * Setup the state shared by all the Layouts used in a render, then have
+     * the fonts specified.
+     */
+    private void prepareLayouts(final Context cr) {
+        options = new FontOptions();
+        options.setHintMetrics(OFF);
+        options.setHintStyle(NONE);
+
+        measure = createLayout(cr);
+        derived = new HashMap<String, Typeface>(8);
+
+        specifyFonts(cr);
     }
 
     protected void specifyFonts(final Context cr) {
@@ -327,24 +616,62 @@ public abstract class RenderEngine
 
         desc = settings.getFontSerif();
         size = desc.getSize();
-        serifFace = new Typeface(cr, desc, 0.2);
+        serifFace = createTypeface(desc, 0.2);
 
         desc = settings.getFontSans();
-        sansFace = new Typeface(cr, desc, 0.0);
+        sansFace = createTypeface(desc, 0.0);
 
         desc = settings.getFontMono();
-        monoFace = new Typeface(cr, desc, 0.0);
+        monoFace = createTypeface(desc, 0.0);
 
         desc = settings.getFontHeading();
-        headingFace = new Typeface(cr, desc, 0.0);
+        headingFace = createTypeface(desc, 0.0);
 
         desc = new FontDescription("Linux Libertine O,");
         desc.setSize(size);
-        smallFace = new Typeface(cr, desc, 0.0);
+        smallFace = createTypeface(desc, 0.0);
 
         cr.setSource(0.0, 0.0, 0.0);
     }
 
+    /**
+     * Get a new Layout, configured with the FontOptions in use for this
+     * render. Use this rather than constructing Layouts directly.
+     */
+    protected final Layout createLayout(final Context cr) {
+        final Layout result;
+
+        result = new Layout(cr);
+        result.getContext().setFontOptions(options);
+
+        return result;
+    }
+
+    /**
+     * Measure a font, creating a Typeface. Only valid from
+     * {@link #specifyFonts(Context) specifyFonts()} onwards in a render.
+     */
+    protected final Typeface createTypeface(final FontDescription desc, final double extraSpacing) {
+        final String key;
+        Typeface face;
+
+        key = desc.toString() + '\t' + extraSpacing;
+
+        synchronized (faces) {
+            face = faces.get(key);
+        }
+
+        if (face == null) {
+            face = new Typeface(measure, desc, extraSpacing);
+
+            synchronized (faces) {
+                faces.put(key, face);
+            }
+        }
+
+        return face;
+    }
+
     void processSegmentsIntoAreas(final Context cr) {
         int i, j, k;
         int I, J;
@@ -357,9 +684,12 @@ public abstract class RenderEngine
         String filename;
         final ArrayList<Segment> references;
         String label, type;
+        final Chapters previous;
+        boolean special;
+        Profiler.Mark chapterMark, segmentMark;
 
         I = folio.size();
-        areas = new ArrayList<Area>(64);
+        special = false;
 
         references = new ArrayList<Segment>(4);
 
@@ -389,7 +719,15 @@ public abstract class RenderEngine
          * Now process document
          */
 
+        if (retain) {
+            previous = retained;
+            retained = new Chapters(I);
+        } else {
+            previous = null;
+        }
+
         for (i = 0; i < I; i++) {
+            chapterMark = Profiler.begin();
             component = folio.getComponent(i);
             series = component.getSeriesMain();
             folioIndex = i;
@@ -398,11 +736,32 @@ public abstract class RenderEngine
                 appendPageBreak(cr);
             }
 
+            if (retain) {
+                retained.components[i] = component;
+
+                /*
+                 * Origins carry the chapter's index, so the Areas can only
+                 * be reused if it is in the same position.
+                 */
+
+                if ((previous != null) && (i < previous.components.length)
+                        && (previous.components[i] == component) && (previous.areas[i] != null)) {
+                    retained.areas[i] = previous.areas[i];
+                    accumulate(previous.areas[i]);
+                    Profiler.end(chapterMark, "layout", getChapterName(i));
+                    continue;
+                }
+
+                recording = new ArrayList<Area>(256);
+                special = false;
+            }
+
             J = series.size();
             for (j = 0; j < J; j++) {
                 seriesIndex = j;
                 currentOffset = 0;
 
+                segmentMark = Profiler.begin();
                 segment = series.getSegment(j);
                 entire = segment.getEntire();
 
@@ -476,6 +835,7 @@ public abstract class RenderEngine
                     appendLeader(cr, entire);
                 } else if (segment instanceof SpecialSegment) {
                     type = segment.getExtra();
+                    special = true;
 
                     if (type.equals("endnotes")) {
                         processSpecialEndnotes(cr);
@@ -483,12 +843,36 @@ public abstract class RenderEngine
                         processSpecialReferences(cr, references);
                     }
                 }
+
+                Profiler.end(segmentMark, "layout", segment.getClass().getSimpleName());
             }
 
             appendSegmentBreak(cr);
+
+            if (retain) {
+                if (!special) {
+                    retained.areas[i] = recording.toArray(new Area[recording.size()]);
+                }
+                recording = null;
+            }
+
+            Profiler.end(chapterMark, "layout", getChapterName(i));
         }
     }
 
+    /**
+     * Name the chapter at the given index for reporting purposes.
+     */
+    private String getChapterName(final int i) {
+        final Chapter chapter;
+
+        chapter = folio.getChapter(i);
+        if (chapter == null) {
+            return "chapter " + i;
+        }
+        return chapter.getRelative();
+    }
+
     void processSpecialEndnotes(final Context cr) {
         int i, j;
         int I, J;
@@ -672,7 +1056,7 @@ public abstract class RenderEngine
         final Rectangle rect;
         final double height;
 
-        layout = new Layout(cr);
+        layout = createLayout(cr);
         layout.setFontDescription(face.desc);
         layout.setText(label);
 
@@ -693,19 +1077,26 @@ public abstract class RenderEngine
 
     protected void appendTitle(final Context cr, final String label, final Extract entire,
             final double multiplier, final boolean centered) {
+        final String key;
         final FontDescription desc;
         final double size;
-        final Typeface face;
+        Typeface face;
         final Span span;
         final Extract extract;
         final Area area;
         Area[] list;
         double width;
 
-        desc = headingFace.desc.copy();
-        size = desc.getSize();
-        desc.setSize(size * multiplier);
-        face = new Typeface(cr, desc, 0.0);
+        key = "title:" + multiplier;
+        face = derived.get(key);
+
+        if (face == null) {
+            desc = headingFace.desc.copy();
+            size = desc.getSize();
+            desc.setSize(size * multiplier);
+            face = createTypeface(desc, 0.0);
+            derived.put(key, face);
+        }
 
         if (centered) {
             if ((label != null) && (label.length() > 0)) {
@@ -746,14 +1137,19 @@ public abstract class RenderEngine
     protected void appendLeader(Context cr, Extract entire) {
         final FontDescription desc;
         final double size;
-        final Typeface face;
+        Typeface face;
         final Area[] list;
 
-        desc = serifFace.desc.copy();
-        desc.setWeight(Weight.BOLD);
-        size = desc.getSize();
-        desc.setSize(size * 1.2);
-        face = new Typeface(cr, desc, 0.0);
+        face = derived.get("leader");
+
+        if (face == null) {
+            desc = serifFace.desc.copy();
+            desc.setWeight(Weight.BOLD);
+            size = desc.getSize();
+            desc.setSize(size * 1.2);
+            face = createTypeface(desc, 0.0);
+            derived.put("leader", face);
+        }
 
         list = layoutAreaText(cr, entire, face, false, true, 0.0, 1, false);
         accumulate(list);
@@ -763,12 +1159,15 @@ public abstract class RenderEngine
         int i;
 
         for (i = 0; i < list.length; i++) {
-            areas.add(list[i]);
+            accumulate(list[i]);
         }
     }
 
     private void accumulate(Area area) {
-        areas.add(area);
+        if (recording != null) {
+            recording.add(area);
+        }
+        flow.add(area);
     }
 
     protected void appendNormalParagraph(final Context cr, final String text, final Markup markup) {
@@ -840,13 +1239,18 @@ public abstract class RenderEngine
 
     protected void appendAttributionParagraph(Context cr, Extract extract) {
         final FontDescription desc;
-        final Typeface face;
+        Typeface face;
         final double savedLeft, savedRight;
         final Area[] list;
 
-        desc = serifFace.desc.copy();
-        desc.setSize(7.0);
-        face = new Typeface(cr, desc, 0.0);
+        face = derived.get("attribution");
+
+        if (face == null) {
+            desc = serifFace.desc.copy();
+            desc.setSize(7.0);
+            face = createTypeface(desc, 0.0);
+            derived.put("attribution", face);
+        }
 
         savedLeft = leftMargin;
         savedRight = rightMargin;
@@ -941,7 +1345,7 @@ public abstract class RenderEngine
         final Origin origin;
         final Area area;
 
-        layout = new Layout(cr);
+        layout = createLayout(cr);
         layout.setFontDescription(face.desc);
         layout.setText(label);
 
@@ -960,124 +1364,6 @@ public abstract class RenderEngine
         return area;
     }
 
-    // character
-    private int previous;
-
-    /**
-     * Carry out smart typography replacements. Returns the number of
-     * characters actually added, since some cases insert Unicode control
-     * sequences.
-     */
-    private int translateAndAppend(final StringBuilder buf, final int ch, final Markup format,
-            final boolean preformatted) {
-        int num, i, tr;
-        boolean code, small;
-
-        code = false;
-        small = false;
-        num = 0;
-
-        /*
-         * If it's preformatted, then automatically assume code conditions.
-         * Otherwise, setup switches based on Markup type.
-         */
-
-        if (preformatted) {
-            code = true;
-        } else if ((format == Common.LITERAL) || (format == Common.FILENAME)) {
-            code = true;
-        } else if (format == Common.ACRONYM) {
-            small = true;
-        }
-
-        /*
-         * Perform translations.
-         */
-
-        if (code) {
-            /*
-             * Prevent Pango from doing line breaks on opening brackets.
-             * U+2060 is the WORD JOINER character, similar to a zero width
-             * space but with a more precise semantic.
-             */
-
-            if ((ch == '(') || (ch == '{') || (ch == '[')) {
-                buf.append('\u2060');
-                num++;
-            }
-
-            /*
-             * Should we choose to replace spaces with non-breaking spaces in
-             * code blocks, it's U+00A0. Anyway, now add the character.
-             */
-
-            buf.appendCodePoint(ch);
-            num++;
-        } else if (small) {
-            tr = LibertineTypography.toSmallCase(ch);
-
-            buf.appendCodePoint(tr);
-            num++;
-        } else if (ch == '"') {
-            /*
-             * Replace normal quotes. When there's a space (or paragraph
-             * start) preceeding the character we're considering, replace with
-             * U+201C aka the LEFT DOUBLE QUOTATION MARK. Otherwise, close the
-             * quotation with U+201D aka the RIGHT DOUBLE QUOTATION MARK.
-             * Inspired by Smarty, of Markdown fame. Note that we don't do
-             * this in preformatted code blocks
-             */
-
-            if (previous == '\0') {
-                buf.append('“');
-                num++;
-            } else if (!Character.isWhitespace(previous)) {
-                buf.append('”');
-                num++;
-            } else {
-                buf.append('“');
-                num++;
-            }
-        } else if (ch == '\'') {
-            /*
-             * Replace apostrophies. Unlike the double quote case above, we do
-             * not replace matched pairs since we are NOT using single quotes
-             * for quoted speech, and because there is no way to differentiate
-             * "I heard him say 'wow' out loud" and the aspirated contraction
-             * "There any 'round here?" We take the second case as more
-             * important to get right, which requires a close quote only. The
-             * relevant characters are U+2018 aka the LEFT SINGLE QUOTATION
-             * MARK and U+2019 aka the RIGHT SINGLE QUOTATION MARK. We only
-             * use the latter for typsetting contractions.
-             */
-            buf.append('’');
-            num++;
-        } else if (ch == ' ') {
-            /*
-             * If the preceeding sequence is " - " then replace the hyphen
-             * with U+2014 EM DASH.
-             */
-            if (previous == '-') {
-                i = buf.length();
-                if ((i > 1) && (buf.charAt(i - 2) == ' ')) {
-                    buf.setCharAt(i - 1, '\u2014');
-                }
-            }
-            buf.append(' ');
-            num++;
-        } else {
-            /*
-             * Normal character. Just add it.
-             */
-
-            buf.appendCodePoint(ch);
-            num++;
-        }
-
-        previous = ch;
-        return num;
-    }
-
     /**
      * Render an Extract of text in the given Typeface into a TextArea object.
      * 
@@ -1088,11 +1374,11 @@ public abstract class RenderEngine
             final boolean preformatted, final boolean centered, final double indent, final int spacing,
             boolean error) {
         final Layout layout;
-        final FontOptions options;
-        final StringBuilder buf;
-        final AttributeList list;
+        final AttributeRuns runs;
         int k;
         final int K;
+        final int base;
+        int start;
         String str;
         LayoutLine line;
         final Area[] result;
@@ -1105,71 +1391,44 @@ public abstract class RenderEngine
             return new Area[] {};
         }
 
-        layout = new Layout(cr);
-
-        options = new FontOptions();
-        options.setHintMetrics(OFF);
-        options.setHintStyle(NONE);
-        layout.getContext().setFontOptions(options);
+        /*
+         * The LayoutLines of this Layout are held by the TextAreas we are
+         * about to create, so unlike the measuring Layout it can't be reset
+         * and reused for the next paragraph.
+         */
 
+        layout = createLayout(cr);
         layout.setFontDescription(face.desc);
 
         layout.setWidth(pageWidth - (leftMargin + rightMargin));
         layout.setWrapMode(WrapMode.WORD_CHAR);
         layout.setIndent(indent); // see note below
 
-        buf = new StringBuilder();
-
-        list = new AttributeList();
+        runs = new AttributeRuns();
 
-        previous = '\0';
+        typography.reset(preformatted);
 
         /*
-         * Now iterate over the Spans, accumulating their characters, and
-         * creating Attributes along the way.
+         * Now iterate over the Spans, accumulating their characters (with
+         * smart typography replacements) and noting the Markup of each so
+         * Attributes can be created for the runs of identically formatted
+         * text.
          */
 
         extract.visit(new SpanVisitor() {
-            private int offset = 0;
-
             public boolean visit(Span span) {
-                final Markup format;
-                final int J;
-                int width, j;
-                final String str;
-
-                format = span.getMarkup();
-                width = 0;
-
-                if (span instanceof MarkerSpan) {
-                    str = span.getText();
-                    J = str.length();
-
-                    for (j = 0; j < J; j++) {
-                        width += translateAndAppend(buf, str.charAt(j), format, preformatted);
-                    }
-                } else {
-                    J = span.getWidth();
-
-                    for (j = 0; j < J; j++) {
-                        width += translateAndAppend(buf, span.getChar(j), format, preformatted);
-                    }
-                }
-
-                for (Attribute attr : attributesForMarkup(format)) {
-                    attr.setIndices(offset, width);
-                    list.insert(attr);
-                }
+                final int width;
 
-                offset += width;
+                width = typography.append(span);
+                runs.append(span.getMarkup(), width);
 
                 return false;
             }
         });
 
-        str = buf.toString();
+        str = typography.getText();
         layout.setText(str);
-        layout.setAttributes(list);
+        layout.setAttributes(runs.finish());
 
         /*
          * Finally, we can render the individual lines of the paragraph. We do
@@ -1189,6 +1448,9 @@ public abstract class RenderEngine
             throw new AssertionError();
         }
 
+        base = currentOffset;
+        start = 0;
+
         for (k = 0; k < K; k++) {
             line = layout.getLineReadonly(k);
 
@@ -1214,7 +1476,7 @@ public abstract class RenderEngine
                 }
             }
 
-            origin = new Origin(folioIndex, seriesIndex, currentOffset);
+            origin = new Origin(folioIndex, seriesIndex, base + typography.toOriginal(start));
             area = new TextArea(origin, x, face.lineHeight, face.lineAscent, line, error);
 
             /*
@@ -1231,45 +1493,120 @@ public abstract class RenderEngine
             }
 
             /*
-             * Query the layoutline for it's width, thereby finding out where
-             * the next Origin should be marked. This isn't 100% correct,
-             * because the number of characters laid out is NOT the same as
-             * the number of characters in the editor [due to our typography
-             * changes]. But it's usually the same, and I'm not sure how we
-             * can go from LayoutLine (start, width) pairs to actual (Segment,
-             * offset) unless we track the mapping between Segments'
-             * TextChains and the typography() result.
+             * Query the LayoutLine for its width, thereby finding out where
+             * the next line starts in the rendered text. The number of
+             * characters laid out is NOT the same as the number of
+             * characters in the editor [due to our typography changes and
+             * markers], so map it back to an offset into the Segment.
              */
 
-            currentOffset += line.getLength();
+            start += line.getLength();
         }
 
+        currentOffset = base + typography.getOriginalWidth();
+
         return result;
     }
 
     /**
-     * Take the Area[] and pour them into a Page[].
+     * Pour Areas into Pages as they are prepared. Each Page gets its header
+     * and footer when it is opened, and is complete as soon as an Area
+     * doesn't fit or a PageBreakArea is reached. Completed Pages are either
+     * kept (for the preview, which needs to find and redraw them) or, when
+     * streaming, drawn to the target immediately and discarded.
      */
-    private void flowAreasIntoPages(Context cr) {
-        final int I;
-        int i, num, j;
-        double headerHeight, footerHeight, available;
-        double cursor, request;
-        Page page;
-        Area area;
-        Area[] header, footer;
-        Origin origin;
+    private class PageFlow
+    {
+        private final Context cr;
 
-        pages = new ArrayList<Page>(8);
-        lookup = new TreeMap<Origin, Page>();
+        private final boolean streaming;
 
-        I = areas.size();
-        i = 0;
-        num = 1;
+        /**
+         * The Page being filled, or null if one hasn't been started.
+         */
+        private Page page;
+
+        /**
+         * Has anything other than header and footer been put on the
+         * current Page?
+         */
+        private boolean empty;
+
+        private double cursor;
+
+        /**
+         * The y position when we run out of space (ie not scalar, which is
+         * why topMargin and headerHeight are not included).
+         */
+        private double available;
+
+        private int num;
+
+        private PageFlow(final Context cr, final boolean streaming) {
+            this.cr = cr;
+            this.streaming = streaming;
+            this.page = null;
+            this.num = 1;
+        }
+
+        void add(final Area area) {
+            final Profiler.Mark mark;
+
+            mark = Profiler.begin();
+            place(area);
+            Profiler.end(mark, "flow", "areas");
+        }
+
+        private void place(final Area area) {
+            final double request;
+
+            if (page == null) {
+                /*
+                 * Absorb whitespace if it turns up at the top of a new Page
+                 */
+
+                if ((area == null) || (area instanceof BlankArea)) {
+                    return;
+                }
+                open(area.getOrigin());
+            }
+
+            if (area == null) {
+                return;
+            }
+
+            if (area instanceof PageBreakArea) {
+                close();
+                return;
+            }
+
+            request = area.getHeight();
+
+            /*
+             * If we've run out of room, start a new Page. An Area taller
+             * than an entire page goes on one by itself regardless.
+             */
+
+            if ((cursor + request > available) && !empty) {
+                close();
+                place(area);
+                return;
+            }
+
+            page.append(cursor, area);
+
+            cursor += request;
+            empty = false;
+        }
+
+        private void open(final Origin origin) {
+            double headerHeight, footerHeight;
+            Area[] header, footer;
+            Area area;
+            int j;
 
-        while (i < I) {
-            area = null; // hm
             page = new Page(num);
+            empty = true;
             headerHeight = 0;
             footerHeight = 0;
 
@@ -1304,67 +1641,105 @@ public abstract class RenderEngine
                 page.append(pageHeight - bottomMargin - footerHeight, area);
             }
 
-            /*
-             * available is the y position when we run out of space (ie not
-             * scalar, which is why topMargin and headerHeight are not
-             * included).
-             */
-
             available = pageHeight - bottomMargin - footerHeight;
             cursor = topMargin + headerHeight;
 
-            /*
-             * Absorb whitespace if it turns up at the top of a new Page
-             */
+            if (!streaming) {
+                lookup.put(origin, page);
+            }
+        }
 
-            while (i < I) {
-                area = areas.get(i);
-                if (area instanceof BlankArea) {
-                    i++;
-                    continue;
-                }
-                break;
+        private void close() {
+            if (page == null) {
+                return;
             }
 
-            origin = area.getOrigin();
-            lookup.put(origin, page);
+            if (streaming) {
+                /*
+                 * Flush the previous page out before drawing this one; the
+                 * last page is emitted when the Surface is finished.
+                 */
 
-            /*
-             * Flow Areas onto the Page until we run out of room.
-             */
+                if (num > 1) {
+                    showPage(cr.getTarget());
+                }
+                page.render(cr, resolution);
+            } else {
+                pages.add(page);
+            }
 
-            while (i < I) {
-                area = areas.get(i);
+            page = null;
+            num++;
+        }
 
-                if (area == null) {
-                    i++;
-                    continue;
-                }
+        void finish() {
+            close();
+        }
+    }
 
-                if (area instanceof PageBreakArea) {
-                    i++;
-                    break;
-                }
+    /**
+     * Accumulate the Attributes for a paragraph. Adjacent Spans with the
+     * same Markup are coalesced into a single run before any Attributes are
+     * created. Typing fragments text into lots of little Spans, and without
+     * this a bold word would get a WeightAttribute per keystroke rather than
+     * one for the word.
+     */
+    /*
+     * Markup instances are singletons, so identity comparison is sufficient.
+     * Note that Attributes are owned by the AttributeList they are inserted
+     * into, so they can't be shared between paragraphs; new ones are created
+     * for each run.
+     */
+    private class AttributeRuns
+    {
+        private final AttributeList list;
 
-                request = area.getHeight();
+        /**
+         * The Markup of the run currently being accumulated.
+         */
+        private Markup current;
 
-                if (cursor + request > available) {
-                    break;
-                }
+        private int start;
 
-                page.append(cursor, area);
+        private int end;
 
-                cursor += request;
-                i++;
-            }
+        private AttributeRuns() {
+            list = new AttributeList();
+            current = null;
+            start = 0;
+            end = 0;
+        }
 
-            /*
-             * Accumulate the Page, then end the loop.
-             */
+        /**
+         * Extend the current run by width characters if format is the same;
+         * otherwise close it off and begin a new run.
+         */
+        private void append(final Markup format, final int width) {
+            if (format != current) {
+                flush();
+                current = format;
+                start = end;
+            }
+            end += width;
+        }
 
-            pages.add(page);
+        private void flush() {
+            if (end == start) {
+                return;
+            }
+            for (Attribute attr : attributesForMarkup(current)) {
+                attr.setIndices(start, end - start);
+                list.insert(attr);
+            }
+        }
 
-            num++;
+        /**
+         * Close off the last run and return the completed AttributeList.
+         */
+        private AttributeList finish() {
+            flush();
+            start = end;
+            return list;
         }
     }
 
@@ -1494,10 +1869,18 @@ public abstract class RenderEngine
     }
 
     /**
-     * The number of pages in this document, as rendered.
+     * The number of pages in this document, as rendered. Whole document
+     * renders don't retain their pages, so this will be 0 until a single
+     * page render has been done.
      */
     public int getPageCount() {
-        return pages.size();
+        final Pagination done;
+
+        done = published;
+        if (done == null) {
+            return 0;
+        }
+        return done.pages.size();
     }
 
     /**
@@ -1742,7 +2125,7 @@ public abstract class RenderEngine
         final Area image, blank, group;
         final double request, savedLeft, savedRight;
         final FontDescription desc;
-        final Typeface face;
+        Typeface face;
         final Area[] list, areas;
 
         manuscript = folio.getManuscript();
@@ -1811,9 +2194,14 @@ public abstract class RenderEngine
         leftMargin += 45.0;
         rightMargin += 45.0;
 
-        desc = serifFace.desc.copy();
-        desc.setStyle(Style.ITALIC);
-        face = new Typeface(cr, desc, 0.0);
+        face = derived.get("caption");
+
+        if (face == null) {
+            desc = serifFace.desc.copy();
+            desc.setStyle(Style.ITALIC);
+            face = createTypeface(desc, 0.0);
+            derived.put("caption", face);
+        }
 
         list = layoutAreaText(cr, entire, face, false, true, 0.0, 1, false);
 
@@ -1846,6 +2234,7 @@ public abstract class RenderEngine
      */
     protected final Area layoutAreaImage(final Context cr, final String filename, final double dpi)
             throws IOException {
+        final CachedImage image;
         final double fileWidth, fileHeight, width, height;
         final double conversionFactor, available, scaleFactor, request;
         final double leftCorner;
@@ -1854,8 +2243,9 @@ public abstract class RenderEngine
 
         conversionFactor = 72.0 / dpi;
 
-        fileWidth = Pixbuf.getFileInfoWidth(filename);
-        fileHeight = Pixbuf.getFileInfoHeight(filename);
+        image = ImageCache.lookup(filename);
+        fileWidth = image.width;
+        fileHeight = image.height;
         width = fileWidth * conversionFactor;
         height = fileHeight * conversionFactor;
 
@@ -18,7 +18,6 @@
  */
 package parchment.render;
 
-import org.gnome.gtk.PaperSize;
 import org.gnome.pango.FontDescription;
 
 import parchment.manuscript.Stylesheet;
@@ -34,7 +33,32 @@ import parchment.manuscript.UnsupportedValueException;
 // immutable, not that it really matters.
 public class RenderSettings
 {
-    private final PaperSize paper;
+    /*
+     * The paper sizes we support, and their dimensions in points. These are
+     * the same as GTK's PaperSize would give, but looking them up here means
+     * rendering doesn't need GTK to be loaded (let alone initialized, which
+     * requires a display).
+     */
+
+    private static final String[] PAPER_NAMES = {
+        "A4",
+        "Letter"
+    };
+
+    private static final double[][] PAPER_SIZES = {
+        {
+            210.0 / 25.4 * 72.0,
+            297.0 / 25.4 * 72.0
+        },
+        {
+            8.5 * 72.0,
+            11.0 * 72.0
+        }
+    };
+
+    private final double paperWidth;
+
+    private final double paperHeight;
 
     private final double marginTop;
 
@@ -58,10 +82,13 @@ public class RenderSettings
     RenderSettings(final Stylesheet style) throws UnsupportedValueException {
         final String serif, sans, mono, heading;
         final String top, left, right, bottom;
+        final double[] paper;
         String size;
 
         size = style.getPaperSize();
-        this.paper = loadPaperType(size);
+        paper = loadPaperType(size);
+        this.paperWidth = paper[0];
+        this.paperHeight = paper[1];
 
         top = style.getMarginTop();
         this.marginTop = loadMargin(top);
@@ -92,17 +119,22 @@ public class RenderSettings
         this.fontHeading = loadDescription(heading, size);
     }
 
-    private static PaperSize loadPaperType(String size) throws UnsupportedValueException {
-        if (size.equals("A4")) {
-            return PaperSize.A4;
-        } else if (size.equals("Letter")) {
-            return PaperSize.LETTER;
-        } else {
-            /*
-             * We don't support arbitrary paper types yet, sorry.
-             */
-            throw new UnsupportedValueException("Requested <paper size=\"" + size + "\"> invalid");
+    /**
+     * Look up the width and height, in points, of the named paper size.
+     */
+    private static double[] loadPaperType(String size) throws UnsupportedValueException {
+        int i;
+
+        for (i = 0; i < PAPER_NAMES.length; i++) {
+            if (size.equals(PAPER_NAMES[i])) {
+                return PAPER_SIZES[i];
+            }
         }
+
+        /*
+         * We don't support arbitrary paper types yet, sorry.
+         */
+        throw new UnsupportedValueException("Requested <paper size=\"" + size + "\"> invalid");
     }
 
     /**
@@ -155,8 +187,18 @@ public class RenderSettings
         return desc;
     }
 
-    PaperSize getPaper() {
-        return this.paper;
+    /**
+     * Width of the paper, in points.
+     */
+    double getPaperWidth() {
+        return this.paperWidth;
+    }
+
+    /**
+     * Height of the paper, in points.
+     */
+    double getPaperHeight() {
+        return this.paperHeight;
     }
 
     double getMarginTop() {
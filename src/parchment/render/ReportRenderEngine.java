@@ -37,7 +37,7 @@ public class ReportRenderEngine extends RenderEngine
         final Layout result;
         final String text;
 
-        result = new Layout(cr);
+        result = createLayout(cr);
         result.setFontDescription(serifFace.desc);
 
         text = Integer.toString(pageNumber);
@@ -39,12 +39,12 @@ public class ScreenRenderEngine extends RenderEngine
     }
 
     protected void specifyFonts(final Context cr) {
-        serifFace = new Typeface(cr, new FontDescription("Linux Libertine, 9.1"), 0.0);
+        serifFace = createTypeface(new FontDescription("Linux Libertine, 9.1"), 0.0);
 
-        monoFace = new Typeface(cr, new FontDescription("Inconsolata, 8.3"), 0.0);
+        monoFace = createTypeface(new FontDescription("Inconsolata, 8.3"), 0.0);
 
-        sansFace = new Typeface(cr, new FontDescription("Liberation Sans, 7.3"), 0.0);
+        sansFace = createTypeface(new FontDescription("Liberation Sans, 7.3"), 0.0);
 
-        headingFace = new Typeface(cr, new FontDescription("Linux Libertine O C"), 0.0);
+        headingFace = createTypeface(new FontDescription("Linux Libertine O C"), 0.0);
     }
 }
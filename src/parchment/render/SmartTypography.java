@@ -0,0 +1,476 @@
+/*
+ * Quill and Parchment, a WYSIWYN document editor and rendering engine.
+ *
+ * Copyright © 2011 Operational Dynamics Consulting, Pty Ltd
+ *
+ * The code in this file, and the program it is a part of, is made available
+ * to you by its authors as open source software: you can redistribute it
+ * and/or modify it under the terms of the GNU General Public License version
+ * 2 ("GPL") as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GPL for more details.
+ *
+ * You should have received a copy of the GPL along with this program. If not,
+ * see http://www.gnu.org/licenses/. The authors of this program may be
+ * contacted through http://research.operationaldynamics.com/projects/quill/.
+ */
+package parchment.render;
+
+import quill.textbase.Common;
+import quill.textbase.MarkerSpan;
+import quill.textbase.Markup;
+import quill.textbase.Span;
+
+/**
+ * Carry out smart typography replacements on the text of a paragraph as it
+ * is accumulated for layout. Whole Spans are processed at once; runs of
+ * characters which none of the rules apply to are copied in bulk.
+ *
+ * <p>
+ * The rules are compiled into a table indexed by mode (normal text, code, or
+ * acronym) and character, so deciding what to do with a character is a
+ * single lookup rather than a chain of tests. Only ASCII characters have
+ * rules; everything else is copied through unchanged.
+ *
+ * <p>
+ * Since some rules insert characters, and markers are displayed as their
+ * reference text rather than as the single character they occupy in the
+ * editor, the rendered text is not the same length as the original. As it
+ * goes this class records the mapping between offsets in the original
+ * (Segment) text and the rendered text; see {@link #toOriginal(int)
+ * toOriginal()}.
+ *
+ * <p>
+ * Offsets, in both directions, are counted in characters (ie Unicode code
+ * points) as per {@link Span#getWidth()}.
+ *
+ * @author Andrew Cowie
+ */
+final class SmartTypography
+{
+    /*
+     * Modes, being the first index into the rules table.
+     */
+
+    private static final int TEXT = 0;
+
+    private static final int CODE = 1;
+
+    private static final int ACRONYM = 2;
+
+    /*
+     * Actions, being the values in the rules table.
+     */
+
+    private static final byte COPY = 0;
+
+    private static final byte QUOTE = 1;
+
+    private static final byte APOSTROPHE = 2;
+
+    private static final byte SPACE = 3;
+
+    private static final byte JOIN = 4;
+
+    private static final byte SMALL = 5;
+
+    private static final byte[][] rules;
+
+    static {
+        int ch;
+
+        rules = new byte[3][128];
+
+        /*
+         * Replace normal quotes. When there's a space (or paragraph start)
+         * preceeding the character we're considering, replace with U+201C
+         * aka the LEFT DOUBLE QUOTATION MARK. Otherwise, close the quotation
+         * with U+201D aka the RIGHT DOUBLE QUOTATION MARK. Inspired by
+         * Smarty, of Markdown fame.
+         *
+         * Replace apostrophies. Unlike the double quote case above, we do not
+         * replace matched pairs since we are NOT using single quotes for
+         * quoted speech, and because there is no way to differentiate
+         * "I heard him say 'wow' out loud" and the aspirated contraction
+         * "There any 'round here?" We take the second case as more important
+         * to get right, which requires a close quote only, U+2019 aka the
+         * RIGHT SINGLE QUOTATION MARK.
+         *
+         * If the preceeding sequence is " - " then on reaching the space
+         * replace the hyphen with U+2014 EM DASH.
+         */
+
+        rules[TEXT]['"'] = QUOTE;
+        rules[TEXT]['\''] = APOSTROPHE;
+        rules[TEXT][' '] = SPACE;
+
+        /*
+         * Prevent Pango from doing line breaks on opening brackets in code.
+         * Should we choose to replace spaces with non-breaking spaces in
+         * code blocks, it's U+00A0.
+         */
+
+        rules[CODE]['('] = JOIN;
+        rules[CODE]['{'] = JOIN;
+        rules[CODE]['['] = JOIN;
+
+        /*
+         * Acronyms, the ones which LibertineTypography.toSmallCase() maps.
+         */
+
+        for (ch = 'A'; ch <= 'Z'; ch++) {
+            rules[ACRONYM][ch] = SMALL;
+        }
+        for (ch = '0'; ch <= '9'; ch++) {
+            rules[ACRONYM][ch] = SMALL;
+        }
+    }
+
+    private final StringBuilder buf;
+
+    /**
+     * The text of the Span being appended, copied here so we don't need a
+     * String for each one.
+     */
+    private char[] span;
+
+    /**
+     * Is the paragraph preformatted text, in which case all characters are
+     * treated as code.
+     */
+    private boolean preformatted;
+
+    /**
+     * The last original character processed, or '\0' at paragraph start.
+     */
+    private int previous;
+
+    /**
+     * Number of original characters consumed so far.
+     */
+    private int original;
+
+    /**
+     * Number of characters emitted so far.
+     */
+    private int rendered;
+
+    /*
+     * The offset mapping, as a sequence of runs. Run i begins at rendered
+     * offset starts[i] which corresponds to original offset origins[i]. If
+     * the run is linear, subsequent characters correspond one to one;
+     * otherwise (inserted characters, markers) every rendered character in
+     * the run maps back to the same original offset.
+     */
+
+    private int[] starts;
+
+    private int[] origins;
+
+    private boolean[] linear;
+
+    private int runs;
+
+    SmartTypography() {
+        buf = new StringBuilder(256);
+        span = new char[256];
+        starts = new int[16];
+        origins = new int[16];
+        linear = new boolean[16];
+        reset(false);
+    }
+
+    /**
+     * Clear state so this can be used to accumulate a new paragraph.
+     */
+    void reset(final boolean preformatted) {
+        this.preformatted = preformatted;
+
+        buf.setLength(0);
+        previous = '\0';
+        original = 0;
+        rendered = 0;
+
+        runs = 0;
+        mark(true);
+    }
+
+    /**
+     * Begin a new run in the offset mapping at the current position.
+     */
+    private void mark(final boolean isLinear) {
+        final int len;
+        int[] s, o;
+        boolean[] l;
+
+        if ((runs > 0) && (starts[runs - 1] == rendered)) {
+            /*
+             * The previous run was empty; just replace it.
+             */
+            runs--;
+        } else if ((runs > 0) && isLinear && linear[runs - 1]
+                && (rendered - starts[runs - 1] == original - origins[runs - 1])) {
+            /*
+             * Still in step with the previous linear run, nothing to do.
+             */
+            return;
+        }
+
+        if (runs == starts.length) {
+            len = runs * 2;
+
+            s = new int[len];
+            o = new int[len];
+            l = new boolean[len];
+
+            System.arraycopy(starts, 0, s, 0, runs);
+            System.arraycopy(origins, 0, o, 0, runs);
+            System.arraycopy(linear, 0, l, 0, runs);
+
+            starts = s;
+            origins = o;
+            linear = l;
+        }
+
+        starts[runs] = rendered;
+        origins[runs] = original;
+        linear[runs] = isLinear;
+        runs++;
+    }
+
+    private int modeFor(final Markup format) {
+        if (preformatted) {
+            return CODE;
+        } else if ((format == Common.LITERAL) || (format == Common.FILENAME)) {
+            return CODE;
+        } else if (format == Common.ACRONYM) {
+            return ACRONYM;
+        } else {
+            return TEXT;
+        }
+    }
+
+    /**
+     * Translate and accumulate the text of a Span. Returns the number of
+     * characters actually added, since some cases insert Unicode control
+     * sequences.
+     */
+    int append(final Span source) {
+        final int mode, len, before, at, marker;
+
+        mode = modeFor(source.getMarkup());
+
+        len = source.getTextLength();
+        if (len > span.length) {
+            span = new char[Math.max(span.length * 2, len)];
+        }
+        source.getChars(span, 0);
+
+        before = rendered;
+
+        if (source instanceof MarkerSpan) {
+            /*
+             * A marker is one character in the original, but is displayed as
+             * its reference text; all of which maps back to the marker.
+             */
+            at = original;
+            mark(false);
+            marker = runs;
+
+            translate(mode, span, len);
+
+            runs = marker;
+            original = at + 1;
+            mark(true);
+        } else {
+            translate(mode, span, len);
+        }
+
+        return rendered - before;
+    }
+
+    /**
+     * Run through the first len chars of str, bulk copying runs of
+     * characters that don't trigger any rules, and acting on those that do.
+     */
+    private void translate(final int mode, final char[] str, final int len) {
+        final byte[] table;
+        int i, start, ch;
+        byte action;
+
+        table = rules[mode];
+        start = 0;
+
+        for (i = 0; i < len; i++) {
+            ch = str[i];
+
+            if (ch >= 128) {
+                continue;
+            }
+            action = table[ch];
+            if (action == COPY) {
+                continue;
+            }
+
+            copy(str, start, i);
+            start = i + 1;
+
+            switch (action) {
+            case QUOTE:
+                if (previous == '\0') {
+                    emit('“');
+                } else if (!Character.isWhitespace(previous)) {
+                    emit('”');
+                } else {
+                    emit('“');
+                }
+                break;
+            case APOSTROPHE:
+                emit('’');
+                break;
+            case SPACE:
+                emitSpace();
+                break;
+            case JOIN:
+                /*
+                 * U+2060 is the WORD JOINER character, similar to a zero
+                 * width space but with a more precise semantic. It's
+                 * inserted, so doesn't correspond to anything original.
+                 */
+                mark(false);
+                buf.append('\u2060');
+                rendered++;
+                mark(true);
+
+                emit(ch);
+                break;
+            case SMALL:
+                emit(LibertineTypography.toSmallCase(ch));
+                break;
+            default:
+                throw new AssertionError();
+            }
+
+            previous = ch;
+        }
+
+        copy(str, start, len);
+    }
+
+    /**
+     * Copy characters verbatim.
+     */
+    private void copy(final char[] str, final int begin, final int end) {
+        final int width;
+
+        if (begin == end) {
+            return;
+        }
+
+        buf.append(str, begin, end - begin);
+
+        width = Character.codePointCount(str, begin, end - begin);
+        original += width;
+        rendered += width;
+
+        previous = Character.codePointBefore(str, end, begin);
+    }
+
+    /**
+     * Emit a single translated character, which corresponds to a single
+     * original character.
+     */
+    private void emit(final int tr) {
+        buf.appendCodePoint(tr);
+        original++;
+        rendered++;
+    }
+
+    private void emitSpace() {
+        final int i;
+
+        if (previous == '-') {
+            i = buf.length();
+            if ((i > 1) && (buf.charAt(i - 2) == ' ')) {
+                buf.setCharAt(i - 1, '\u2014');
+            }
+        }
+        emit(' ');
+    }
+
+    /**
+     * Get the text as accumulated thus far.
+     */
+    String getText() {
+        return buf.toString();
+    }
+
+    /**
+     * Number of original characters processed.
+     */
+    int getOriginalWidth() {
+        return original;
+    }
+
+    /**
+     * Number of characters in the rendered text.
+     */
+    int getRenderedWidth() {
+        return rendered;
+    }
+
+    /**
+     * Find the index of the run containing the given offset.
+     */
+    private static int find(final int[] array, final int num, final int offset) {
+        int lo, hi, mid;
+
+        lo = 0;
+        hi = num - 1;
+
+        while (lo < hi) {
+            mid = (lo + hi + 1) >>> 1;
+            if (array[mid] <= offset) {
+                lo = mid;
+            } else {
+                hi = mid - 1;
+            }
+        }
+
+        return lo;
+    }
+
+    /**
+     * Given an offset into the rendered text, what offset into the original
+     * text did it come from?
+     */
+    int toOriginal(final int offset) {
+        final int i;
+
+        i = find(starts, runs, offset);
+
+        if (linear[i]) {
+            return origins[i] + (offset - starts[i]);
+        } else {
+            return origins[i];
+        }
+    }
+
+    /**
+     * Given an offset into the original text, where did it end up in the
+     * rendered text?
+     */
+    int toRendered(final int offset) {
+        final int i;
+
+        i = find(origins, runs, offset);
+
+        if (linear[i]) {
+            return starts[i] + (offset - origins[i]);
+        } else {
+            return starts[i];
+        }
+    }
+}
@@ -18,16 +18,11 @@
  */
 package parchment.render;
 
-import org.freedesktop.cairo.Context;
-import org.freedesktop.cairo.FontOptions;
 import org.gnome.pango.FontDescription;
 import org.gnome.pango.Layout;
 import org.gnome.pango.LayoutLine;
 import org.gnome.pango.Rectangle;
 
-import static org.freedesktop.cairo.HintMetrics.OFF;
-import static org.freedesktop.cairo.HintStyle.NONE;
-
 /**
  * Information about a font, including its description and metrics. Used for
  * layout purposes by RenderEngine.
@@ -48,6 +43,13 @@ class Typeface
     final double lineAscent;
 
     /**
+     * @param measure
+     *            a scratch Layout, already configured with the FontOptions
+     *            in use for this render, which will be used to measure the
+     *            font. It is reset, so the same one can be used for each
+     *            Typeface being created. See
+     *            {@link RenderEngine#createTypeface(FontDescription, double)
+     *            createTypeface()}.
      * @param extraSpacing
      *            Specify additional spacing to be added to the default line
      *            height. If you've got a font whose extents are unreasonably
@@ -55,25 +57,16 @@ class Typeface
      *            (but, beware that if you specify a negative delta that is
      *            greater than the ascent value, Bad Things will happen).
      */
-    Typeface(Context cr, FontDescription desc, double extraSpacing) {
-        final Layout layout;
-        final FontOptions options;
+    Typeface(Layout measure, FontDescription desc, double extraSpacing) {
         final LayoutLine line;
         final Rectangle logical;
 
         this.desc = desc;
 
-        layout = new Layout(cr);
-        options = new FontOptions();
-        options.setHintMetrics(OFF);
-        options.setHintStyle(NONE);
-        layout.getContext().setFontOptions(options);
-
-        layout.setFontDescription(desc);
-
-        layout.setText("Some text");
+        measure.setFontDescription(desc);
+        measure.setText("Some text");
 
-        line = layout.getLineReadonly(0);
+        line = measure.getLineReadonly(0);
         logical = line.getExtentsLogical();
 
         this.lineHeight = logical.getHeight() + extraSpacing;
@@ -22,7 +22,6 @@ import java.io.FileNotFoundException;
 import java.io.IOException;
 
 import org.gnome.glib.Glib;
-import org.gnome.gtk.Gtk;
 
 import parchment.manuscript.Manuscript;
 import quill.textbase.Folio;
@@ -56,12 +55,11 @@ public class Format
     }
 
     /*
-     * We do need to initialize java-gnome. We don't need to initialize the
-     * Quill UI.
+     * We only load and save XML here; there's no need to initialize GTK
+     * (which would require a display).
      */
     static void initializeUserInterface(String[] args) {
         Glib.setProgramName("quill");
-        Gtk.init(args);
     }
 
     /**
@@ -96,6 +94,6 @@ public class Format
     }
 
     static void serializeDocument() throws IOException {
-        manuscript.saveDocument(folio);
+        manuscript.saveDocumentCompletely(folio);
     }
 }
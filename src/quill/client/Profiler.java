@@ -0,0 +1,354 @@
+/*
+ * Quill and Parchment, a WYSIWYN document editor and rendering engine.
+ *
+ * Copyright © 2011 Operational Dynamics Consulting, Pty Ltd
+ *
+ * The code in this file, and the program it is a part of, is made available
+ * to you by its authors as open source software: you can redistribute it
+ * and/or modify it under the terms of the GNU General Public License version
+ * 2 ("GPL") as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GPL for more details.
+ *
+ * You should have received a copy of the GPL along with this program. If not,
+ * see http://www.gnu.org/licenses/. The authors of this program may be
+ * contacted through http://research.operationaldynamics.com/projects/quill/.
+ */
+package quill.client;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Accumulate how much time (and memory) the phases of loading and rendering
+ * a document take. Code to be measured is bracketed like this:
+ *
+ * <pre>
+ * final Profiler.Mark mark;
+ *
+ * mark = Profiler.begin();
+ * ...
+ * Profiler.end(mark, &quot;layout&quot;, &quot;NormalSegment&quot;);
+ * </pre>
+ *
+ * Measurements are accumulated by (phase, detail) pair. Marks may be nested;
+ * for each pair both the total time and the "self" time (less that spent in
+ * nested marks) are kept.
+ *
+ * <p>
+ * Profiling is off unless {@link #setEnabled(boolean) setEnabled()} is
+ * called. While it is disabled, begin() returns null and end() does nothing,
+ * so the brackets can be left in place at no real cost.
+ *
+ * @author Andrew Cowie
+ */
+/*
+ * Allocation is measured with the per-thread allocated bytes counter, which
+ * is a HotSpot extension to ThreadMXBean. It's looked up reflectively so
+ * this still works (minus allocation figures) on other VMs.
+ */
+public final class Profiler
+{
+    private Profiler() {}
+
+    private static volatile boolean enabled;
+
+    private static final HashMap<String, Entry> entries;
+
+    private static final ThreadLocal<Mark> current;
+
+    private static final ThreadMXBean threads;
+
+    private static final Method allocated;
+
+    static {
+        Method method;
+
+        entries = new HashMap<String, Entry>(64);
+        current = new ThreadLocal<Mark>();
+        threads = ManagementFactory.getThreadMXBean();
+
+        try {
+            method = Class.forName("com.sun.management.ThreadMXBean").getMethod("getThreadAllocatedBytes",
+                    long.class);
+            method.invoke(threads, Long.valueOf(Thread.currentThread().getId()));
+        } catch (Exception e) {
+            method = null;
+        }
+        allocated = method;
+    }
+
+    public static void setEnabled(final boolean setting) {
+        enabled = setting;
+    }
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Start measuring. Returns null if profiling is not enabled.
+     */
+    public static Mark begin() {
+        final Mark mark;
+
+        if (!enabled) {
+            return null;
+        }
+
+        mark = new Mark(current.get());
+        current.set(mark);
+
+        mark.bytes = getAllocatedBytes();
+        mark.time = System.nanoTime();
+
+        return mark;
+    }
+
+    /**
+     * Finish measuring, attributing the time and memory used since begin()
+     * to the given phase and detail.
+     */
+    public static void end(final Mark mark, final String phase, final String detail) {
+        final long time, bytes;
+        final Entry entry;
+
+        if (mark == null) {
+            return;
+        }
+
+        time = System.nanoTime() - mark.time;
+        bytes = getAllocatedBytes() - mark.bytes;
+
+        current.set(mark.parent);
+        if (mark.parent != null) {
+            mark.parent.childTime += time;
+            mark.parent.childBytes += bytes;
+        }
+
+        synchronized (entries) {
+            entry = lookup(phase, detail);
+
+            entry.count++;
+            entry.time += time;
+            entry.self += time - mark.childTime;
+            entry.bytes += bytes;
+            entry.selfBytes += bytes - mark.childBytes;
+        }
+    }
+
+    /**
+     * Count an occurrence of something too quick to be worth timing, such as
+     * a cache hit. It shows in the report with a count and no time.
+     */
+    public static void count(final String phase, final String detail) {
+        final Entry entry;
+
+        if (!enabled) {
+            return;
+        }
+
+        synchronized (entries) {
+            entry = lookup(phase, detail);
+            entry.count++;
+        }
+    }
+
+    /**
+     * Get the Entry for the given pair, creating it if necessary. Call with
+     * the entries lock held.
+     */
+    private static Entry lookup(final String phase, final String detail) {
+        final String key;
+        Entry entry;
+
+        key = phase + '\t' + detail;
+
+        entry = entries.get(key);
+        if (entry == null) {
+            entry = new Entry(phase, detail);
+            entries.put(key, entry);
+        }
+
+        return entry;
+    }
+
+    /**
+     * Discard everything measured so far.
+     */
+    public static void reset() {
+        synchronized (entries) {
+            entries.clear();
+        }
+    }
+
+    private static long getAllocatedBytes() {
+        if (allocated == null) {
+            return 0;
+        }
+        try {
+            return (Long) allocated.invoke(threads, Long.valueOf(Thread.currentThread().getId()));
+        } catch (Exception e) {
+            return 0;
+        }
+    }
+
+    private static List<Entry> getSortedEntries() {
+        final List<Entry> result;
+
+        synchronized (entries) {
+            result = new ArrayList<Entry>(entries.values());
+        }
+
+        Collections.sort(result, new Comparator<Entry>() {
+            public int compare(Entry one, Entry two) {
+                if (one.self > two.self) {
+                    return -1;
+                } else if (one.self < two.self) {
+                    return 1;
+                } else {
+                    return 0;
+                }
+            }
+        });
+
+        return result;
+    }
+
+    /**
+     * Print a table of everything measured, most expensive (by self time)
+     * first.
+     */
+    public static void printReport(final PrintStream out) {
+        final List<Entry> list;
+
+        list = getSortedEntries();
+
+        out.println(String.format("%-8s %-24s %8s %10s %10s %10s %10s", "phase", "detail", "count",
+                "total ms", "self ms", "total KB", "self KB"));
+
+        for (Entry entry : list) {
+            out.println(String.format("%-8s %-24s %8d %10.1f %10.1f %10d %10d", entry.phase, entry.detail,
+                    entry.count, entry.time / 1e6, entry.self / 1e6, entry.bytes / 1024,
+                    entry.selfBytes / 1024));
+        }
+    }
+
+    /**
+     * Write everything measured as a JSON array of objects, one per (phase,
+     * detail) pair. Times are in nanoseconds, allocation in bytes.
+     */
+    public static void writeReport(final String filename) throws IOException {
+        final List<Entry> list;
+        final Writer out;
+        boolean first;
+
+        list = getSortedEntries();
+        out = new OutputStreamWriter(new FileOutputStream(filename), "UTF-8");
+
+        try {
+            out.write("[\n");
+            first = true;
+
+            for (Entry entry : list) {
+                if (!first) {
+                    out.write(",\n");
+                }
+                first = false;
+
+                out.write("  {\"phase\": " + quote(entry.phase) + ", \"detail\": " + quote(entry.detail)
+                        + ", \"count\": " + entry.count + ", \"time\": " + entry.time + ", \"self\": "
+                        + entry.self + ", \"bytes\": " + entry.bytes + ", \"selfBytes\": "
+                        + entry.selfBytes + "}");
+            }
+
+            out.write("\n]\n");
+        } finally {
+            out.close();
+        }
+    }
+
+    private static String quote(final String str) {
+        final StringBuilder buf;
+        final int len;
+        int i;
+        char ch;
+
+        len = str.length();
+        buf = new StringBuilder(len + 2);
+        buf.append('"');
+
+        for (i = 0; i < len; i++) {
+            ch = str.charAt(i);
+            if ((ch == '"') || (ch == '\\')) {
+                buf.append('\\');
+                buf.append(ch);
+            } else if (ch < 0x20) {
+                buf.append(String.format("\\u%04x", (int) ch));
+            } else {
+                buf.append(ch);
+            }
+        }
+
+        buf.append('"');
+        return buf.toString();
+    }
+
+    /**
+     * A measurement in progress.
+     */
+    public static final class Mark
+    {
+        private final Mark parent;
+
+        private long time;
+
+        private long bytes;
+
+        private long childTime;
+
+        private long childBytes;
+
+        private Mark(final Mark parent) {
+            this.parent = parent;
+        }
+    }
+
+    /**
+     * Accumulated measurements for a (phase, detail) pair.
+     */
+    private static final class Entry
+    {
+        private final String phase;
+
+        private final String detail;
+
+        private long count;
+
+        private long time;
+
+        private long self;
+
+        private long bytes;
+
+        private long selfBytes;
+
+        private Entry(final String phase, final String detail) {
+            this.phase = phase;
+            this.detail = detail;
+        }
+    }
+}
@@ -41,11 +41,17 @@ public class Quill
 {
     private static UserInterface ui;
 
+    /**
+     * Was --profile given?
+     */
+    private static boolean profile;
+
     public static void main(String[] args) throws Exception {
         try {
             initializeUserInterface(args);
             parseCommandLine(args);
             runUserInterface();
+            reportProfile();
         } catch (SafelyTerminateException ste) {
             // quietly supress
             return;
@@ -56,6 +62,7 @@ public class Quill
         Glib.setProgramName("quill");
         Gtk.init(args);
         Internationalization.init("quill", "share/locale/");
+        Manuscript.enableChapterCache();
 
         ui = new UserInterface();
     }
@@ -67,8 +74,23 @@ public class Quill
      * TODO parse arguments properly here.
      */
     static void parseCommandLine(String[] args) throws Exception {
-        if (args.length > 0) {
-            loadDocumentFile(args[0]);
+        String filename;
+
+        filename = null;
+
+        for (String arg : args) {
+            if (arg.equals("--profile")) {
+                profile = true;
+                Profiler.setEnabled(true);
+                continue;
+            }
+            if (filename == null) {
+                filename = arg;
+            }
+        }
+
+        if (filename != null) {
+            loadDocumentFile(filename);
         } else {
             loadDocumentBlank();
         }
@@ -131,6 +153,17 @@ public class Quill
         }
     }
 
+    /**
+     * If profiling, print what was measured over the session.
+     */
+    private static void reportProfile() {
+        if (!profile) {
+            return;
+        }
+
+        Profiler.printReport(System.out);
+    }
+
     public static UserInterface getUserInterface() {
         if (ui == null) {
             throw new Error("Not yet initialized");
@@ -18,28 +18,65 @@
  */
 package quill.client;
 
+import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 import org.freedesktop.cairo.Context;
 import org.freedesktop.cairo.PdfSurface;
 import org.freedesktop.cairo.Surface;
 import org.gnome.glib.Glib;
-import org.gnome.gtk.Gtk;
-import org.gnome.gtk.PaperSize;
-import org.gnome.gtk.Unit;
 
+import parchment.manuscript.Chapter;
 import parchment.manuscript.Manuscript;
 import parchment.manuscript.Stylesheet;
 import parchment.render.RenderEngine;
+import quill.textbase.Component;
 import quill.textbase.Folio;
-import quill.ui.UserInterface;
 
 /**
  * Front end allowing you to render the Quack XML document named on the
  * command line using the Parchment rendering engine to produce printable
  * output as a PDF.
  * 
+ * <p>
+ * If more than one document is named, or a directory is given (in which case
+ * all the <code>.parchment</code> files in it are used), the documents are
+ * rendered concurrently by a pool of worker threads. The time taken for each
+ * is reported, and the program exits with a non-zero status if any of them
+ * failed.
+ * 
+ * <p>
+ * Given <code>--watch</code> and a single document, the program stays
+ * running and renders the document again each time it or one of its chapter
+ * files changes on disk. Only the changed chapters are reloaded and laid out
+ * again.
+ * 
+ * <p>
+ * Given <code>--profile</code>, the time and memory spent in each phase
+ * (parsing, layout, pagination, image decoding, drawing and output) is
+ * measured, per chapter and per kind of Segment. A table is printed at the
+ * end of the run, and the same figures are written as JSON alongside the
+ * PDF (or to <code>render.profile.json</code> in the current directory when
+ * rendering a batch).
+ * 
  * @author Andrew Cowie
  */
 /*
@@ -49,17 +86,46 @@ import quill.ui.UserInterface;
  */
 public class Render
 {
-    public static UserInterface ui;
-
     private static Manuscript manuscript;
 
     private static Folio folio;
 
+    /**
+     * Was --watch given?
+     */
+    private static boolean watch;
+
+    /**
+     * Was --profile given?
+     */
+    private static boolean profile;
+
     public static void main(String[] args) throws Exception {
+        final List<String> filenames;
+        final boolean success;
+
         try {
             initializeUserInterface(args);
-            parseCommandLine(args);
-            runRenderPipeline();
+            filenames = parseCommandLine(args);
+
+            if (watch) {
+                if (filenames.size() != 1) {
+                    System.err.println("ERROR: Can only watch one document.");
+                    throw new SafelyTerminateException();
+                }
+                loadDocumentFile(filenames.get(0));
+                runWatchLoop();
+            } else if (filenames.size() == 1) {
+                loadDocumentFile(filenames.get(0));
+                runRenderPipeline();
+                reportProfile(manuscript.getDirectory() + "/" + manuscript.getBasename() + ".profile.json");
+            } else {
+                success = runBatch(filenames);
+                reportProfile("render.profile.json");
+                if (!success) {
+                    System.exit(1);
+                }
+            }
         } catch (SafelyTerminateException ste) {
             // quietly supress
             return;
@@ -67,29 +133,73 @@ public class Render
     }
 
     /*
-     * We do need to initialize java-gnome. We don't need to initialize the
-     * Quill UI.
+     * We do need to load java-gnome, but rendering only uses Cairo, Pango,
+     * and the image libraries; none of which need GTK. Not initializing it
+     * saves startup time and means we can run without a display.
      */
     static void initializeUserInterface(String[] args) {
         Glib.setProgramName("quill");
-        Gtk.init(args);
+        Manuscript.enableChapterCache();
     }
 
     /**
      * Parse arguments from command line. See
      * {@link Quill#parseCommandLine(String[])} for a discussion of how hard
-     * this is.
+     * this is. Returns the documents to be rendered; directories are
+     * expanded to the .parchment files within them.
      */
     /*
      * TODO parse arguments properly here.
      */
-    static void parseCommandLine(String[] args) throws Exception {
-        if (args.length == 1) {
-            loadDocumentFile(args[0]);
-        } else {
-            System.err.println("ERROR: Please supply one filename to render.");
+    static List<String> parseCommandLine(String[] args) throws Exception {
+        final List<String> result;
+        File file;
+        File[] children;
+
+        if (args.length == 0) {
+            System.err.println("ERROR: Please supply a filename (or filenames) to render.");
+            throw new SafelyTerminateException();
+        }
+
+        result = new ArrayList<String>(args.length);
+
+        for (String arg : args) {
+            if (arg.equals("--watch")) {
+                watch = true;
+                continue;
+            }
+            if (arg.equals("--profile")) {
+                profile = true;
+                Profiler.setEnabled(true);
+                continue;
+            }
+
+            file = new File(arg);
+
+            if (file.isDirectory()) {
+                children = file.listFiles();
+                if (children == null) {
+                    System.err.println("ERROR: Can't read directory " + arg);
+                    throw new SafelyTerminateException();
+                }
+                Arrays.sort(children);
+
+                for (File child : children) {
+                    if (child.getName().endsWith(".parchment")) {
+                        result.add(child.getPath());
+                    }
+                }
+            } else {
+                result.add(arg);
+            }
+        }
+
+        if (result.size() == 0) {
+            System.err.println("ERROR: No .parchment files found to render.");
             throw new SafelyTerminateException();
         }
+
+        return result;
     }
 
     static void loadDocumentFile(String filename) throws Exception {
@@ -99,7 +209,7 @@ public class Render
             attempt = new Manuscript(filename);
             attempt.checkFilename();
             manuscript = attempt;
-            folio = manuscript.loadDocument();
+            folio = loadFolio(manuscript);
         } catch (FileNotFoundException fnfe) {
             System.err.println("ERROR: File not found?" + "\n" + fnfe.getMessage());
             throw new SafelyTerminateException();
@@ -108,37 +218,319 @@ public class Render
 
     /**
      * Run a Parchment RenderEngine. The filename logic is copied from
-     * {@link quill.ui.UserInterface}'s printDocument(), and probably
+     * UserInterface's printDocument(), and probably
      * shouldn't be duplicated, BUT see the discussion there about forthcoming
      * document level output targets.
      */
+    private static Folio loadFolio(final Manuscript manuscript) throws Exception {
+        return loadFolio(manuscript, false);
+    }
+
+    /**
+     * @param serial
+     *            load the chapters one after another on this thread, rather
+     *            than in parallel. Batch jobs do this; the batch is already
+     *            running a thread per processor.
+     */
+    private static Folio loadFolio(final Manuscript manuscript, final boolean serial) throws Exception {
+        final Profiler.Mark mark;
+        final Folio result;
+
+        mark = Profiler.begin();
+        if (serial) {
+            result = manuscript.loadDocumentSerially();
+        } else {
+            result = manuscript.loadDocument();
+        }
+        Profiler.end(mark, "open", manuscript.getBasename());
+
+        return result;
+    }
+
     static void runRenderPipeline() throws IOException {
+        renderDocument(manuscript, folio, createEngine(folio));
+    }
+
+    private static RenderEngine createEngine(final Folio folio) {
+        final Stylesheet style;
+
+        style = folio.getStylesheet();
+
+        try {
+            return RenderEngine.createRenderer(style);
+        } catch (ApplicationException rnfe) {
+            // FIXME this has to be handled, but NOT here. Hm.
+            throw new Error(rnfe);
+        }
+    }
+
+    private static void renderDocument(final Manuscript manuscript, final Folio folio,
+            final RenderEngine engine) throws IOException {
         final String parentdir, basename, targetname;
         final Context cr;
         final Surface surface;
-        final PaperSize paper;
-        final Stylesheet style;
-        final RenderEngine engine;
+        final Profiler.Mark mark;
 
-        paper = PaperSize.A4;
+        mark = Profiler.begin();
 
         parentdir = manuscript.getDirectory();
         basename = manuscript.getBasename();
         targetname = parentdir + "/" + basename + ".pdf";
 
-        surface = new PdfSurface(targetname, paper.getWidth(Unit.POINTS), paper.getHeight(Unit.POINTS));
+        surface = new PdfSurface(targetname, engine.getPageWidth(), engine.getPageHeight());
         cr = new Context(surface);
 
+        engine.render(cr, folio);
+
+        surface.finish();
+
+        Profiler.end(mark, "render", basename);
+    }
+
+    /**
+     * If profiling, print what was measured and write it out as JSON, then
+     * start afresh.
+     */
+    private static void reportProfile(final String filename) throws IOException {
+        if (!profile) {
+            return;
+        }
+
+        Profiler.printReport(System.out);
+        Profiler.writeReport(filename);
+        Profiler.reset();
+    }
+
+    /**
+     * Render many documents concurrently. Returns true if they all succeeded.
+     */
+    /*
+     * Each job gets its own Manuscript, RenderEngine, Surface and Context, so
+     * the only state shared between threads is what's already shared within
+     * the process: Pango's font map (and the fonts loaded into it), the
+     * measured Typefaces, and Parchment's ImageCache. Engines are not reused
+     * across documents because a document's Stylesheet determines which
+     * engine it gets. Jobs load their chapters serially, so that the pool
+     * here is the only one doing work.
+     */
+    private static boolean runBatch(final List<String> filenames) throws InterruptedException {
+        final int threads;
+        final ExecutorService pool;
+        final List<Future<Boolean>> results;
+        final long begin;
+        boolean success;
+
+        threads = Math.min(Runtime.getRuntime().availableProcessors(), filenames.size());
+        pool = Executors.newFixedThreadPool(threads);
+        results = new ArrayList<Future<Boolean>>(filenames.size());
+
+        begin = System.currentTimeMillis();
+
+        for (String filename : filenames) {
+            results.add(pool.submit(new RenderJob(filename)));
+        }
+        pool.shutdown();
+
+        success = true;
+        for (Future<Boolean> result : results) {
+            try {
+                if (!result.get()) {
+                    success = false;
+                }
+            } catch (ExecutionException ee) {
+                success = false;
+            }
+        }
+
+        System.out.println(filenames.size() + " documents in " + (System.currentTimeMillis() - begin)
+                + " ms using " + threads + " threads");
+
+        return success;
+    }
+
+    /**
+     * Load and render one document in a batch, reporting how long it took or
+     * why it failed.
+     */
+    private static class RenderJob implements Callable<Boolean>
+    {
+        private final String filename;
+
+        private RenderJob(final String filename) {
+            this.filename = filename;
+        }
+
+        public Boolean call() {
+            final long begin;
+            final Manuscript manuscript;
+            final Folio folio;
+
+            begin = System.currentTimeMillis();
+
+            try {
+                manuscript = new Manuscript(filename);
+                manuscript.checkFilename();
+                folio = loadFolio(manuscript, true);
+
+                renderDocument(manuscript, folio, createEngine(folio));
+            } catch (Throwable t) {
+                report("FAILED " + filename + ": " + t);
+                return Boolean.FALSE;
+            }
+
+            report(filename + ": " + (System.currentTimeMillis() - begin) + " ms");
+            return Boolean.TRUE;
+        }
+    }
+
+    private static synchronized void report(final String message) {
+        System.out.println(message);
+    }
+
+    /**
+     * Render the document, then wait for it or any of its chapters to
+     * change, and render it again. Doesn't return.
+     */
+    /*
+     * The engine is kept across renders, retaining the layout of each
+     * chapter; since an unchanged chapter file isn't reloaded its Component
+     * is the same instance as last time, and the engine reuses its Areas.
+     * The engine is replaced if the Stylesheet changes.
+     */
+    private static void runWatchLoop() throws Exception {
+        final WatchService watcher;
+        final Set<Path> changed;
+        RenderEngine engine;
+        Stylesheet style;
+        WatchKey key;
+        Path dir;
+        long begin;
+
+        watcher = FileSystems.getDefault().newWatchService();
+        changed = new HashSet<Path>();
+
+        engine = createEngine(folio);
+        engine.setRetainChapters(true);
         style = folio.getStylesheet();
 
-        try {
-            engine = RenderEngine.createRenderer(style);
-        } catch (ApplicationException rnfe) {
-            // FIXME this has to be handled, but NOT here. Hm.
-            throw new Error(rnfe);
+        begin = System.currentTimeMillis();
+        renderDocument(manuscript, folio, engine);
+        report(manuscript.getFilename() + ": " + (System.currentTimeMillis() - begin) + " ms");
+        reportProfile(manuscript.getDirectory() + "/" + manuscript.getBasename() + ".profile.json");
+
+        registerDirectories(watcher);
+
+        while (true) {
+            key = watcher.take();
+
+            /*
+             * Editors tend to save by writing several times (or writing a
+             * temporary and renaming it); wait a moment so all of that is
+             * seen as one change.
+             */
+
+            changed.clear();
+            do {
+                dir = (Path) key.watchable();
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                        continue;
+                    }
+                    changed.add(dir.resolve((Path) event.context()).toAbsolutePath().normalize());
+                }
+                key.reset();
+
+                key = watcher.poll(100, TimeUnit.MILLISECONDS);
+            } while (key != null);
+
+            begin = System.currentTimeMillis();
+
+            try {
+                if (!reloadChanged(changed)) {
+                    continue;
+                }
+
+                if (folio.getStylesheet() != style) {
+                    engine = createEngine(folio);
+                    engine.setRetainChapters(true);
+                    style = folio.getStylesheet();
+                }
+
+                renderDocument(manuscript, folio, engine);
+            } catch (Exception e) {
+                report("FAILED " + manuscript.getFilename() + ": " + e);
+                continue;
+            }
+
+            report(manuscript.getFilename() + ": " + (System.currentTimeMillis() - begin) + " ms");
+            reportProfile(manuscript.getDirectory() + "/" + manuscript.getBasename() + ".profile.json");
+
+            registerDirectories(watcher);
         }
-        engine.render(cr, folio);
+    }
 
-        surface.finish();
+    private static Path pathOf(final String filename) {
+        return new File(filename).toPath().toAbsolutePath().normalize();
+    }
+
+    private static String chapterFilename(final int i) {
+        final Chapter chapter;
+
+        chapter = folio.getChapter(i);
+        return manuscript.getDirectory() + "/" + chapter.getRelative();
+    }
+
+    /**
+     * Watch the directories containing the document and its chapters.
+     * Registering a directory more than once is harmless.
+     */
+    private static void registerDirectories(final WatchService watcher) throws IOException {
+        final int I;
+        int i;
+
+        pathOf(manuscript.getFilename()).getParent().register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+                StandardWatchEventKinds.ENTRY_MODIFY);
+
+        I = folio.size();
+        for (i = 0; i < I; i++) {
+            pathOf(chapterFilename(i)).getParent().register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_MODIFY);
+        }
+    }
+
+    /**
+     * Update the Folio for the files that changed. If it's the .parchment
+     * file itself then the whole document is reloaded; otherwise just the
+     * affected chapters. Returns false if none of the files are part of the
+     * document.
+     */
+    private static boolean reloadChanged(final Set<Path> changed) throws Exception {
+        final int I;
+        int i;
+        Chapter chapter;
+        Component component;
+        boolean found;
+
+        if (changed.contains(pathOf(manuscript.getFilename()))) {
+            folio = loadFolio(manuscript);
+            return true;
+        }
+
+        found = false;
+
+        I = folio.size();
+        for (i = 0; i < I; i++) {
+            if (!changed.contains(pathOf(chapterFilename(i)))) {
+                continue;
+            }
+
+            chapter = folio.getChapter(i);
+            component = chapter.loadDocument();
+            folio = folio.update(i, component);
+
+            found = true;
+        }
+
+        return found;
     }
 }
@@ -107,6 +107,14 @@ public class CharacterSpan extends Span
         return text;
     }
 
+    public int getTextLength() {
+        return 1;
+    }
+
+    public void getChars(char[] dst, int dstBegin) {
+        dst[dstBegin] = ch;
+    }
+
     public int getChar(int position) {
         if (position != 0) {
             throw new IllegalArgumentException("\n"
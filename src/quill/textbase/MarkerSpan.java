@@ -42,6 +42,14 @@ public class MarkerSpan extends Span
         return reference;
     }
 
+    public int getTextLength() {
+        return reference.length();
+    }
+
+    public void getChars(char[] dst, int dstBegin) {
+        reference.getChars(0, reference.length(), dst, dstBegin);
+    }
+
     public int getChar(int position) {
         return '☢';
     }
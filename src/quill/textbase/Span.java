@@ -91,6 +91,22 @@ public abstract class Span
      */
     public abstract String getText();
 
+    /**
+     * Get the number of chars in this Span's text; the length of what
+     * {@link #getText() getText()} would return. This is not the same as the
+     * width if the Span contains surrogate pairs or is a marker.
+     */
+    public abstract int getTextLength();
+
+    /**
+     * Copy this Span's text into dst, starting at dstBegin, as
+     * String.getChars() does. When going through the text of every Span in
+     * a document, use this and {@link #getTextLength() getTextLength()}
+     * rather than getText(), which may have to create a new String each
+     * time.
+     */
+    public abstract void getChars(char[] dst, int dstBegin);
+
     /**
      * Get the number of <b>characters</b> in this span.
      */
@@ -154,6 +170,10 @@ public abstract class Span
         return str.toString();
     }
 
+    /*
+     * StringSpans are compared char by char, as getText() would create a
+     * String for each of them. Every other kind of Span has a String ready.
+     */
     public boolean equals(Object obj) {
         final Span other;
         final String mine, theirs;
@@ -172,6 +192,14 @@ public abstract class Span
             return false;
         }
 
+        if (this.getTextLength() != other.getTextLength()) {
+            return false;
+        }
+
+        if ((this instanceof StringSpan) && (other instanceof StringSpan)) {
+            return ((StringSpan) this).hasSameText((StringSpan) other);
+        }
+
         mine = this.getText();
         theirs = other.getText();
 
@@ -19,13 +19,26 @@
 package quill.textbase;
 
 /**
- * A Span multiple characters wide built by reusing an existing String.
+ * A Span multiple characters wide. The characters are either a String, as
+ * typed or pasted, or a range of a char[] which may be shared with other
+ * StringSpans, typically a block of a TextArena or the array of the Span this
+ * one was split from.
  * 
  * @author Andrew Cowie
  */
 public class StringSpan extends Span
 {
-    private final String data;
+    /**
+     * The text, if this Span was created from a String; otherwise null, and
+     * the text is in data.
+     */
+    private final String text;
+
+    private final char[] data;
+
+    private final int offset;
+
+    private final int width;
 
     /*
      * Relies on Span.createSpan() to ensure there are no surrogates in the
@@ -34,41 +47,103 @@ public class StringSpan extends Span
      */
     StringSpan(String str, Markup markup) {
         super(markup);
-        data = str;
+        text = str;
+        data = null;
+        offset = 0;
+        width = str.length();
+    }
+
+    /*
+     * Ditto, from TextArena. The range of data must never be changed.
+     */
+    StringSpan(char[] data, int offset, int width, Markup markup) {
+        super(markup);
+        this.text = null;
+        this.data = data;
+        this.offset = offset;
+        this.width = width;
     }
 
     protected Span copy(Markup markup) {
-        return new StringSpan(this.data, markup);
+        if (text != null) {
+            return new StringSpan(this.text, markup);
+        } else {
+            return new StringSpan(this.data, this.offset, this.width, markup);
+        }
     }
 
+    /*
+     * Not cached for array backed Spans; keeping a String around would
+     * duplicate the characters. Use getChars() when looking at every Span.
+     */
     public String getText() {
-        return data;
+        if (text != null) {
+            return text;
+        }
+        return new String(data, offset, width);
+    }
+
+    public int getTextLength() {
+        return width;
+    }
+
+    public void getChars(char[] dst, int dstBegin) {
+        if (text != null) {
+            text.getChars(0, width, dst, dstBegin);
+        } else {
+            System.arraycopy(data, offset, dst, dstBegin, width);
+        }
     }
 
     public int getWidth() {
-        return data.length();
+        return width;
     }
 
     public int getChar(int position) {
-        return data.charAt(position);
+        if (text != null) {
+            return text.charAt(position);
+        }
+        return data[offset + position];
+    }
+
+    /**
+     * Is the text of this Span the same as that of the other one?
+     */
+    boolean hasSameText(StringSpan other) {
+        int i;
+
+        if (this.width != other.width) {
+            return false;
+        }
+
+        for (i = 0; i < width; i++) {
+            if (this.getChar(i) != other.getChar(i)) {
+                return false;
+            }
+        }
+
+        return true;
     }
 
     /*
-     * The OpenJava implementation of substring() reuses the underlying
-     * character array, so this is all good.
+     * If array backed, the result is a view onto the same array, so no
+     * characters are copied (which, since Java 7u6, would not be the case if
+     * we used substring()).
      */
     Span split(int begin, int end) {
-        int width;
+        final int wide;
 
-        width = end - begin;
-        if (width == 0) {
+        wide = end - begin;
+        if (wide == 0) {
             throw new IllegalArgumentException("zero width StringSpans not allowed");
         }
 
-        if (width == 1) {
-            return new CharacterSpan(data.charAt(begin), getMarkup());
+        if (wide == 1) {
+            return new CharacterSpan((char) getChar(begin), getMarkup());
+        } else if (text != null) {
+            return new StringSpan(text.substring(begin, end), getMarkup());
         } else {
-            return new StringSpan(data.substring(begin, end), getMarkup());
+            return new StringSpan(data, offset + begin, wide, getMarkup());
         }
     }
 }
@@ -0,0 +1,126 @@
+/*
+ * Quill and Parchment, a WYSIWYN document editor and rendering engine.
+ *
+ * Copyright © 2011 Operational Dynamics Consulting, Pty Ltd
+ *
+ * The code in this file, and the program it is a part of, is made available
+ * to you by its authors as open source software: you can redistribute it
+ * and/or modify it under the terms of the GNU General Public License version
+ * 2 ("GPL") as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GPL for more details.
+ *
+ * You should have received a copy of the GPL along with this program. If not,
+ * see http://www.gnu.org/licenses/. The authors of this program may be
+ * contacted through http://research.operationaldynamics.com/projects/quill/.
+ */
+package quill.textbase;
+
+/**
+ * Shared storage for the character data of Spans as a chapter is loaded.
+ * Text is copied once into large blocks, and the StringSpans returned are
+ * views onto a range of a block. Splitting such a Span later while editing
+ * gives another view onto the same block rather than a copy.
+ *
+ * <p>
+ * Nothing written into a block is ever changed, so the Spans are as
+ * immutable as ever. An arena is meant to be used by a single loader, and is
+ * not thread safe.
+ *
+ * @author Andrew Cowie
+ */
+public final class TextArena
+{
+    /**
+     * Size of each block, in chars.
+     */
+    private static final int BLOCK = 16384;
+
+    /**
+     * Text longer than this gets an array of its own rather than wasting
+     * whatever is left of the current block.
+     */
+    private static final int LARGE = BLOCK / 4;
+
+    private char[] block;
+
+    private int used;
+
+    public TextArena() {
+        block = null;
+        used = 0;
+    }
+
+    /**
+     * Create a Span from the text between begin and end of the given String.
+     * If fold is set, newlines are turned into spaces as they are copied.
+     * Text containing surrogate pairs isn't stored in the arena; you get
+     * whatever {@link Span#createSpan(String, Markup) createSpan()} would
+     * have given you.
+     */
+    public Span createSpan(final String str, final int begin, final int end, final boolean fold,
+            final Markup markup) {
+        final int width;
+        final char[] target;
+        final int offset;
+        String sub;
+        int i;
+        char ch;
+
+        width = end - begin;
+        if (width <= 0) {
+            throw new IllegalArgumentException("zero width Spans not allowed");
+        }
+
+        if (width == 1) {
+            ch = str.charAt(begin);
+            if (fold && (ch == '\n')) {
+                ch = ' ';
+            }
+            if (!(Character.isHighSurrogate(ch) || Character.isLowSurrogate(ch))) {
+                return Span.createSpan(ch, markup);
+            }
+        }
+
+        if (width > LARGE) {
+            target = new char[width];
+            offset = 0;
+        } else {
+            if ((block == null) || (block.length - used < width)) {
+                block = new char[BLOCK];
+                used = 0;
+            }
+            target = block;
+            offset = used;
+        }
+
+        str.getChars(begin, end, target, offset);
+
+        for (i = offset; i < offset + width; i++) {
+            ch = target[i];
+
+            if (Character.isHighSurrogate(ch) || Character.isLowSurrogate(ch)) {
+                /*
+                 * Leave the space unclaimed; it'll be overwritten.
+                 */
+                sub = str.substring(begin, end);
+                if (fold) {
+                    sub = sub.replace('\n', ' ');
+                }
+                return Span.createSpan(sub, markup);
+            }
+
+            if (fold && (ch == '\n')) {
+                target[i] = ' ';
+            }
+        }
+
+        if (target == block) {
+            used += width;
+        }
+
+        return new StringSpan(target, offset, width, markup);
+    }
+}
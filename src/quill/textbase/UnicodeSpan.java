@@ -167,6 +167,14 @@ public class UnicodeSpan extends Span
         return this.data;
     }
 
+    public int getTextLength() {
+        return data.length();
+    }
+
+    public void getChars(char[] dst, int dstBegin) {
+        data.getChars(0, data.length(), dst, dstBegin);
+    }
+
     /**
      * Get the number of <b>characters</b> in this span.
      */
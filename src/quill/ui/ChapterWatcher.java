@@ -0,0 +1,257 @@
+/*
+ * Quill and Parchment, a WYSIWYN document editor and rendering engine.
+ *
+ * Copyright © 2011 Operational Dynamics Consulting, Pty Ltd
+ *
+ * The code in this file, and the program it is a part of, is made available
+ * to you by its authors as open source software: you can redistribute it
+ * and/or modify it under the terms of the GNU General Public License version
+ * 2 ("GPL") as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GPL for more details.
+ *
+ * You should have received a copy of the GPL along with this program. If not,
+ * see http://www.gnu.org/licenses/. The authors of this program may be
+ * contacted through http://research.operationaldynamics.com/projects/quill/.
+ */
+package quill.ui;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.gnome.glib.Glib;
+import org.gnome.glib.Handler;
+
+import parchment.manuscript.Chapter;
+import parchment.manuscript.Manuscript;
+import quill.textbase.Component;
+import quill.textbase.Folio;
+
+/**
+ * Watch the directories a document's chapters are in, and when one of the
+ * chapter files is changed by something other than us (a version control
+ * checkout, a sync from a collaborator, the Format tool), load it again and
+ * hand the new Component to the PrimaryWindow on the main loop.
+ *
+ * <p>
+ * Checking the file's digest and parsing it are done on this thread, so the
+ * user can keep working in the meantime.
+ *
+ * @author Andrew Cowie
+ */
+class ChapterWatcher
+{
+    private final PrimaryWindow primary;
+
+    private WatchService watcher;
+
+    /**
+     * The filename of the Manuscript being watched, and the directory its
+     * chapters are relative to.
+     */
+    private String filename;
+
+    private String directory;
+
+    /**
+     * The Chapters of the document being watched. These don't change as the
+     * document is edited, so we only need them once.
+     */
+    private Chapter[] chapters;
+
+    ChapterWatcher(final PrimaryWindow primary) {
+        this.primary = primary;
+    }
+
+    /**
+     * Start watching the chapters of the given document, stopping watching
+     * whatever was being watched before.
+     */
+    synchronized void watch(final Manuscript manuscript, final Folio folio) {
+        final WatchService service;
+        final Thread thread;
+        final int I;
+        int i;
+
+        stop();
+
+        filename = manuscript.getFilename();
+        directory = manuscript.getDirectory();
+
+        if (filename == null) {
+            return;
+        }
+
+        I = folio.size();
+        chapters = new Chapter[I];
+        for (i = 0; i < I; i++) {
+            chapters[i] = folio.getChapter(i);
+        }
+
+        try {
+            service = FileSystems.getDefault().newWatchService();
+
+            for (i = 0; i < I; i++) {
+                pathOf(directory, chapters[i]).getParent().register(service,
+                        StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+            }
+        } catch (IOException ioe) {
+            /*
+             * Not being able to watch is a shame, but not worth bothering
+             * the user about.
+             */
+            System.err.println("WARNING: " + "Can't watch for changes to chapter files," + "\n"
+                    + ioe.getMessage());
+            return;
+        }
+
+        watcher = service;
+
+        thread = new Thread("ChapterWatcher") {
+            public void run() {
+                loop(service);
+            }
+        };
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Are we watching the chapters of the given Manuscript, as it is
+     * currently named?
+     */
+    synchronized boolean isWatching(final Manuscript manuscript) {
+        if (watcher == null) {
+            return false;
+        }
+        return filename.equals(manuscript.getFilename());
+    }
+
+    /**
+     * Stop watching. The thread will exit next time it wakes up.
+     */
+    synchronized void stop() {
+        if (watcher == null) {
+            return;
+        }
+
+        try {
+            watcher.close();
+        } catch (IOException ioe) {
+            // gone anyway
+        }
+        watcher = null;
+    }
+
+    private static Path pathOf(final String directory, final Chapter chapter) {
+        return new File(directory + "/" + chapter.getRelative()).toPath().toAbsolutePath().normalize();
+    }
+
+    private void loop(final WatchService service) {
+        final Set<Path> changed;
+        WatchKey key;
+        Path dir;
+
+        changed = new HashSet<Path>();
+
+        try {
+            while (true) {
+                key = service.take();
+
+                /*
+                 * Saving tends to be several writes, or writing a temporary
+                 * and renaming it; wait a moment so all of that is seen as
+                 * one change.
+                 */
+
+                changed.clear();
+                do {
+                    dir = (Path) key.watchable();
+                    for (WatchEvent<?> event : key.pollEvents()) {
+                        if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                            continue;
+                        }
+                        changed.add(dir.resolve((Path) event.context()).toAbsolutePath().normalize());
+                    }
+                    key.reset();
+
+                    key = service.poll(200, TimeUnit.MILLISECONDS);
+                } while (key != null);
+
+                reloadChanged(service, changed);
+            }
+        } catch (ClosedWatchServiceException cwse) {
+            return;
+        } catch (InterruptedException ie) {
+            return;
+        }
+    }
+
+    /**
+     * Load any of the chapters named in changed whose content is actually
+     * different from what we last loaded or saved.
+     */
+    private void reloadChanged(final WatchService service, final Set<Path> changed) {
+        final Chapter[] list;
+        final String dir;
+        Component component;
+
+        synchronized (this) {
+            if (watcher != service) {
+                return;
+            }
+            list = chapters;
+            dir = directory;
+        }
+
+        for (Chapter chapter : list) {
+            if (!changed.contains(pathOf(dir, chapter))) {
+                continue;
+            }
+
+            try {
+                if (!chapter.isChangedOnDisk()) {
+                    continue;
+                }
+                component = chapter.loadDocument();
+            } catch (Exception e) {
+                /*
+                 * Probably caught part way through being written, or not
+                 * valid. Either way, keep what we have; if it's fixed we'll
+                 * hear about it again.
+                 */
+                System.err.println("WARNING: " + "Can't reload changed chapter," + "\n"
+                        + chapter.getRelative() + ": " + e.getMessage());
+                continue;
+            }
+
+            report(service, chapter, component);
+        }
+    }
+
+    private void report(final WatchService service, final Chapter chapter, final Component component) {
+        Glib.idleAdd(new Handler() {
+            public boolean run() {
+                synchronized (ChapterWatcher.this) {
+                    if (watcher != service) {
+                        return false;
+                    }
+                }
+                primary.reloadChapter(chapter, component);
+                return false;
+            }
+        });
+    }
+}
@@ -0,0 +1,209 @@
+/*
+ * Quill and Parchment, a WYSIWYN document editor and rendering engine.
+ *
+ * Copyright © 2011 Operational Dynamics Consulting, Pty Ltd
+ *
+ * The code in this file, and the program it is a part of, is made available
+ * to you by its authors as open source software: you can redistribute it
+ * and/or modify it under the terms of the GNU General Public License version
+ * 2 ("GPL") as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GPL for more details.
+ *
+ * You should have received a copy of the GPL along with this program. If not,
+ * see http://www.gnu.org/licenses/. The authors of this program may be
+ * contacted through http://research.operationaldynamics.com/projects/quill/.
+ */
+package quill.ui;
+
+import java.util.SortedSet;
+
+import org.gnome.glib.Glib;
+import org.gnome.glib.Handler;
+
+import parchment.manuscript.Manuscript;
+import quill.textbase.Folio;
+
+/**
+ * Write the document to disk on a background thread, so that the user can
+ * keep typing while a (possibly slow) save is in progress. Folio is
+ * immutable, so the one handed over is a snapshot that the editor can't
+ * disturb.
+ *
+ * <p>
+ * Only one save runs at a time. If more are requested while one is
+ * underway, only the most recent is carried out when it finishes. The
+ * outcome is reported to the PrimaryWindow back on the main loop.
+ *
+ * @author Andrew Cowie
+ */
+class DocumentSaver
+{
+    private final PrimaryWindow primary;
+
+    private Thread thread;
+
+    /**
+     * The save waiting to be done, if any. A new request replaces one that
+     * hasn't started yet.
+     */
+    private Request next;
+
+    /**
+     * Is the thread in the middle of writing?
+     */
+    private boolean busy;
+
+    /**
+     * The marker of the most recent successful save, or the problem with the
+     * most recent failed one, not yet reported to the PrimaryWindow.
+     */
+    private Folio saved;
+
+    private Throwable failure;
+
+    DocumentSaver(final PrimaryWindow primary) {
+        this.primary = primary;
+    }
+
+    /**
+     * Queue the given Folio to be saved by the given Manuscript. On success,
+     * the PrimaryWindow will be told that marker is what is now on disk.
+     * Call this on the main loop; the spell checker's document word list is
+     * copied here, as words may be added to it while the save is underway.
+     */
+    synchronized void save(final Manuscript manuscript, final Folio folio, final Folio marker,
+            final SpellChecker dict) {
+        next = new Request(manuscript, folio, marker, dict, dict.getDocumentList());
+
+        if (thread == null) {
+            thread = new Thread("DocumentSaver") {
+                public void run() {
+                    loop();
+                }
+            };
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        this.notifyAll();
+    }
+
+    /**
+     * Block until any queued or in progress save is done, and report its
+     * outcome. Call this from the main loop before doing anything that
+     * depends on what is on disk, such as closing the document.
+     */
+    void finish() {
+        synchronized (this) {
+            while ((next != null) || busy) {
+                try {
+                    this.wait();
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+        }
+
+        report();
+    }
+
+    private void loop() {
+        Request request;
+        Throwable problem;
+
+        while (true) {
+            synchronized (this) {
+                while (next == null) {
+                    try {
+                        this.wait();
+                    } catch (InterruptedException ie) {
+                        // keep waiting
+                    }
+                }
+                request = next;
+                next = null;
+                busy = true;
+            }
+
+            /*
+             * The spell checker's document word list is saved alongside, as
+             * it always has been.
+             */
+
+            try {
+                request.manuscript.saveDocument(request.folio);
+                request.dict.saveDocumentList(request.words);
+                problem = null;
+            } catch (Throwable t) {
+                problem = t;
+            }
+
+            synchronized (this) {
+                if (problem == null) {
+                    saved = request.marker;
+                    failure = null;
+                } else {
+                    failure = problem;
+                }
+                busy = false;
+                this.notifyAll();
+            }
+
+            Glib.idleAdd(new Handler() {
+                public boolean run() {
+                    report();
+                    return false;
+                }
+            });
+        }
+    }
+
+    /**
+     * Pass the outcome of completed saves on to the PrimaryWindow. Must be
+     * called on the main loop.
+     */
+    private void report() {
+        final Folio marker;
+        final Throwable problem;
+
+        synchronized (this) {
+            marker = saved;
+            problem = failure;
+            saved = null;
+            failure = null;
+        }
+
+        if (marker != null) {
+            primary.reportSaved(marker);
+        }
+        if (problem != null) {
+            primary.reportSaveFailed(problem);
+        }
+    }
+
+    private static class Request
+    {
+        private final Manuscript manuscript;
+
+        private final Folio folio;
+
+        private final Folio marker;
+
+        private final SpellChecker dict;
+
+        private final SortedSet<String> words;
+
+        private Request(Manuscript manuscript, Folio folio, Folio marker, SpellChecker dict,
+                SortedSet<String> words) {
+            this.manuscript = manuscript;
+            this.folio = folio;
+            this.marker = marker;
+            this.dict = dict;
+            this.words = words;
+        }
+    }
+}
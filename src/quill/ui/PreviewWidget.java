@@ -18,8 +18,15 @@
  */
 package quill.ui;
 
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
 import org.freedesktop.cairo.Context;
+import org.freedesktop.cairo.Format;
+import org.freedesktop.cairo.ImageSurface;
 import org.freedesktop.cairo.Matrix;
+import org.gnome.glib.Glib;
+import org.gnome.glib.Handler;
 import org.gnome.gtk.Adjustment;
 import org.gnome.gtk.Allocation;
 import org.gnome.gtk.DrawingArea;
@@ -92,6 +99,32 @@ class PreviewWidget extends HBox
      */
     private int target;
 
+    /**
+     * Pages already drawn, at the current scale, for the current Folio.
+     * Expose events, dialogs passing over, and flipping back and forth
+     * between pages then just paint from these.
+     */
+    private final LinkedHashMap<Integer, ImageSurface> cache;
+
+    /**
+     * The Folio and scale that the cached pages were drawn for. Since a
+     * Folio is immutable, its identity is a sufficient fingerprint of the
+     * content of its pages.
+     */
+    private Folio cachedFolio;
+
+    private double cachedScale;
+
+    /**
+     * How many rendered pages to keep.
+     */
+    private static final int PAGES = 8;
+
+    /**
+     * Is there already an idle handler queued to render neighbouring pages?
+     */
+    private boolean pending;
+
     PreviewWidget(PrimaryWindow window) {
         super(false, 0);
 
@@ -104,22 +137,51 @@ class PreviewWidget extends HBox
 
         this.primary = window;
 
+        this.cache = new LinkedHashMap<Integer, ImageSurface>(16, 0.75f, true);
+
         drawing.connect(new Widget.Draw() {
             public boolean onDraw(Widget source, Context cr) {
                 final Origin cursor;
+                final double scale;
+                final int index;
+                final ImageSurface page;
 
-                scaleOutput(cr, engine);
-                drawPageOutline(cr, engine);
-                drawCrosshairs(cr, engine);
+                scale = scaleOutput(cr, engine);
+                drawPageShadow(cr, engine);
+
+                if (folio == null) {
+                    drawPageBorder(cr, engine);
+                    return true;
+                }
 
                 if (target == -1) {
                     cursor = primary.getCursor();
-                    engine.render(cr, folio, cursor);
+                    if (cursor == null) {
+                        drawPageBorder(cr, engine);
+                        return true;
+                    }
+                    index = engine.findPage(cr, folio, cursor);
                 } else {
-                    engine.render(cr, folio, target + 1);
+                    index = target;
                 }
 
-                updateScrollbar();
+                page = lookupPage(cr, index, scale);
+
+                /*
+                 * The cached page is in device pixels, so undo the scaling
+                 * before painting it.
+                 */
+
+                cr.save();
+                cr.scale(1.0 / scale, 1.0 / scale);
+                cr.setSource(page, 0, 0);
+                cr.paint();
+                cr.restore();
+
+                drawPageBorder(cr, engine);
+
+                updateScrollbar(index);
+                prerenderNeighbours(index, scale);
 
                 return true;
             }
@@ -147,7 +209,117 @@ class PreviewWidget extends HBox
         });
     }
 
-    private void drawPageOutline(Context cr, RenderEngine engine) {
+    /**
+     * Get the given page (0 origin) drawn at the given scale, rendering it
+     * if it's not already in the cache.
+     */
+    private ImageSurface lookupPage(final Context cr, final int index, final double scale) {
+        final Integer key;
+        ImageSurface page;
+
+        if ((folio != cachedFolio) || (scale != cachedScale)) {
+            cache.clear();
+            cachedFolio = folio;
+            cachedScale = scale;
+        }
+
+        key = Integer.valueOf(index);
+        page = cache.get(key);
+
+        if (page == null) {
+            page = renderPage(index, scale);
+            cachePage(key, page);
+        }
+
+        return page;
+    }
+
+    /**
+     * Add a rendered page to the cache, evicting the least recently used one
+     * if that puts it over PAGES.
+     */
+    private void cachePage(final Integer key, final ImageSurface page) {
+        final Iterator<Integer> iter;
+
+        cache.put(key, page);
+
+        if (cache.size() > PAGES) {
+            iter = cache.keySet().iterator();
+            iter.next();
+            iter.remove();
+        }
+    }
+
+    /**
+     * Draw a page into a new image Surface of the size it will appear on
+     * screen.
+     */
+    private ImageSurface renderPage(final int index, final double scale) {
+        final double pageWidth, pageHeight;
+        final int width, height;
+        final ImageSurface surface;
+        final Context cr;
+
+        pageWidth = engine.getPageWidth();
+        pageHeight = engine.getPageHeight();
+
+        width = (int) Math.ceil(pageWidth * scale);
+        height = (int) Math.ceil(pageHeight * scale);
+
+        surface = new ImageSurface(Format.RGB24, width, height);
+        cr = new Context(surface);
+        cr.scale(scale, scale);
+
+        cr.rectangle(0, 0, pageWidth, pageHeight);
+        cr.setSource(1.0, 1.0, 1.0);
+        cr.fill();
+
+        drawCrosshairs(cr, engine);
+
+        cr.setSource(0.0, 0.0, 0.0);
+        engine.render(cr, folio, index + 1, scale);
+
+        return surface;
+    }
+
+    /**
+     * Once the main loop is idle, draw the pages either side of the one
+     * being shown so that paging to them is just a paint.
+     */
+    private void prerenderNeighbours(final int index, final double scale) {
+        if (pending) {
+            return;
+        }
+        pending = true;
+
+        Glib.idleAdd(new Handler() {
+            public boolean run() {
+                final int num;
+                final Integer before, after;
+
+                pending = false;
+
+                if ((folio != cachedFolio) || (scale != cachedScale)) {
+                    return false;
+                }
+
+                num = engine.getPageCount();
+                before = Integer.valueOf(index - 1);
+                after = Integer.valueOf(index + 1);
+
+                if ((index + 1 < num) && !cache.containsKey(after)) {
+                    cachePage(after, renderPage(index + 1, scale));
+                }
+                if ((index > 0) && !cache.containsKey(before)) {
+                    cachePage(before, renderPage(index - 1, scale));
+                }
+
+                return false;
+            }
+        });
+    }
+
+    private void drawPageShadow(Context cr, RenderEngine engine) {
         final double pageWidth, pageHeight;
         final double shadow = 3.0;
 
@@ -157,10 +329,15 @@ class PreviewWidget extends HBox
         cr.rectangle(shadow, shadow, pageWidth, pageHeight);
         cr.setSource(0.1, 0.1, 0.1);
         cr.fill();
+    }
+
+    private void drawPageBorder(Context cr, RenderEngine engine) {
+        final double pageWidth, pageHeight;
+
+        pageWidth = engine.getPageWidth();
+        pageHeight = engine.getPageHeight();
 
         cr.rectangle(0, 0, pageWidth, pageHeight);
-        cr.setSource(1.0, 1.0, 1.0);
-        cr.fillPreserve();
         cr.setSource(0.0, 0.0, 0.0);
         cr.setLineWidth(0.5);
         cr.stroke();
@@ -193,7 +370,11 @@ class PreviewWidget extends HBox
         cr.stroke();
     }
 
-    private void scaleOutput(Context cr, RenderEngine engine) {
+    /**
+     * Scale the Context so the page fits the allocated size. Returns the
+     * scale factor, ie the number of pixels per point.
+     */
+    private double scaleOutput(Context cr, RenderEngine engine) {
         final Allocation rect;
         final Matrix matrix;
         final double scaleWidth, scaleHeight, scaleFactor;
@@ -231,6 +412,8 @@ class PreviewWidget extends HBox
          */
         matrix.translate(0.5, 1.5);
         cr.transform(matrix);
+
+        return scaleFactor;
     }
 
     /**
@@ -258,6 +441,21 @@ class PreviewWidget extends HBox
             throw new Error(rnfe);
         }
         this.style = style;
+
+        cache.clear();
+        cachedFolio = null;
+    }
+
+    /**
+     * Get the RenderEngine this Widget is using, if it was configured for
+     * the given Stylesheet; null otherwise. Printing can then draw the pages
+     * already laid out for the preview rather than starting over.
+     */
+    RenderEngine getRenderer(Stylesheet style) {
+        if (this.style != style) {
+            return null;
+        }
+        return engine;
     }
 
     /**
@@ -281,11 +479,10 @@ class PreviewWidget extends HBox
         super.queueDraw();
     }
 
-    private void updateScrollbar() {
-        final int num, i;
+    private void updateScrollbar(final int i) {
+        final int num;
 
         num = engine.getPageCount();
-        i = engine.getPageIndex();
 
         internal = true;
         adj.setUpper(num);
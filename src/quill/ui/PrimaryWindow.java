@@ -19,6 +19,9 @@
 package quill.ui;
 
 import java.io.IOException;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
 
 import org.freedesktop.cairo.Context;
 import org.freedesktop.cairo.PdfSurface;
@@ -53,6 +56,7 @@ import org.gnome.gtk.Widget;
 import org.gnome.gtk.Window;
 import org.gnome.gtk.WindowPosition;
 
+import parchment.manuscript.Chapter;
 import parchment.manuscript.Manuscript;
 import parchment.manuscript.Metadata;
 import parchment.manuscript.Stylesheet;
@@ -60,6 +64,7 @@ import parchment.render.RenderEngine;
 import quill.client.ApplicationException;
 import quill.client.ImproperFilenameException;
 import quill.client.Quill;
+import quill.client.RecoveryFileExistsException;
 import quill.textbase.Component;
 import quill.textbase.Folio;
 import quill.textbase.Origin;
@@ -134,8 +139,27 @@ class PrimaryWindow extends Window
 
     private SpellChecker dict;
 
+    /**
+     * Writes the document to disk in the background.
+     */
+    private final DocumentSaver saver;
+
+    /**
+     * Notices when chapter files are changed by something else.
+     */
+    private final ChapterWatcher watcher;
+
+    /**
+     * Components that were loaded afresh from disk because their file
+     * changed underneath us. There's no delta from the previous state for
+     * the editors to apply, so these are displayed from scratch.
+     */
+    private Set<Component> reloaded;
+
     PrimaryWindow() {
         super();
+        saver = new DocumentSaver(this);
+        watcher = new ChapterWatcher(this);
         setupWindow();
         setupEditorSide();
         setupPreviewSide();
@@ -176,6 +200,7 @@ class PrimaryWindow extends Window
 
         current = this.folio;
         this.folio = folio;
+        manuscript.journalDocument(folio);
 
         pos = current.indexOf(cursor);
         i = folio.getIndexUpdated();
@@ -192,8 +217,13 @@ class PrimaryWindow extends Window
          */
 
         if (i == pos) {
-            mainbody.advanceTo(component);
-            endnotes.advanceTo(component);
+            if (reloaded.contains(component)) {
+                mainbody.initialize(component);
+                endnotes.initialize(component);
+            } else {
+                mainbody.advanceTo(component);
+                endnotes.advanceTo(component);
+            }
 
             // is this the right place to set this?
 
@@ -201,7 +231,11 @@ class PrimaryWindow extends Window
         }
 
         if (i == I - 1) {
-            references.advanceTo(component);
+            if (reloaded.contains(component)) {
+                references.initialize(component);
+            } else {
+                references.advanceTo(component);
+            }
         }
 
         stylist.affect(folio);
@@ -226,9 +260,11 @@ class PrimaryWindow extends Window
         final Folio current;
         final int i, pos, I;
         Component component;
+        final boolean fresh;
 
         current = this.folio;
         this.folio = folio;
+        manuscript.journalDocument(folio);
 
         /*
          * Update the SeriesEditorWidget to the current state
@@ -240,20 +276,31 @@ class PrimaryWindow extends Window
 
         if (i >= 0) {
             component = folio.getComponent(i);
+            fresh = reloaded.contains(current.getComponent(i));
         } else {
             component = null;
+            fresh = false;
         }
 
         if (i == pos) {
-            mainbody.reverseTo(component);
-            endnotes.reverseTo(component);
+            if (fresh) {
+                mainbody.initialize(component);
+                endnotes.initialize(component);
+            } else {
+                mainbody.reverseTo(component);
+                endnotes.reverseTo(component);
+            }
 
             // is this the right place to set this?
             cursor = component;
         }
 
         if (i == I - 1) {
-            references.reverseTo(component);
+            if (fresh) {
+                references.initialize(component);
+            } else {
+                references.reverseTo(component);
+            }
         }
 
         /*
@@ -728,6 +775,12 @@ class PrimaryWindow extends Window
     void displayDocument(Folio folio) {
         Component component;
         int i;
+        Folio recovered;
+        final ErrorMessageDialog error;
+
+        if ((this.manuscript != null) && (this.manuscript != folio.getManuscript())) {
+            this.manuscript.stopJournal();
+        }
 
         this.manuscript = folio.getManuscript();
 
@@ -738,6 +791,7 @@ class PrimaryWindow extends Window
         stack = new ChangeStack(folio);
         this.folio = folio;
         this.last = folio;
+        this.reloaded = Collections.newSetFromMap(new IdentityHashMap<Component, Boolean>());
         this.loadDictionary();
 
         // FIXME
@@ -758,6 +812,82 @@ class PrimaryWindow extends Window
 
         preview.refreshDisplay();
         this.updateTitle();
+
+        /*
+         * If there's a journal of changes left over from a session that
+         * didn't end well, apply it as a change on top of what was loaded
+         * so that the document shows as modified (and the recovery can be
+         * undone). Then start journaling this session.
+         */
+
+        try {
+            recovered = manuscript.recoverDocument(folio);
+        } catch (IOException ioe) {
+            error = new ErrorMessageDialog(window, "Unable to recover unsaved changes",
+                    "There is a journal of changes made to this document since it was last saved, "
+                            + "but there was a problem reading it:\n\n<tt>"
+                            + Glib.markupEscapeText(ioe.getMessage()) + "</tt>");
+            error.setSecondaryUseMarkup(true);
+            error.run();
+            error.hide();
+            recovered = folio;
+        }
+
+        manuscript.startJournal(folio);
+        watcher.watch(manuscript, folio);
+
+        if (recovered != folio) {
+            this.apply(recovered);
+        }
+    }
+
+    /**
+     * Stop journaling changes to the document, and watching its files; it is
+     * being closed.
+     */
+    void stopJournal() {
+        watcher.stop();
+        if (manuscript != null) {
+            manuscript.stopJournal();
+        }
+    }
+
+    /**
+     * A chapter's file was changed by something else, and has been loaded
+     * again. Swap it into the document as a change of its own, so it can be
+     * undone. The other chapters, and their editors, are left as they are.
+     */
+    void reloadChapter(final Chapter chapter, final Component component) {
+        final boolean modified;
+        final Folio replacement;
+        final int I;
+        int i;
+
+        I = folio.size();
+        for (i = 0; i < I; i++) {
+            if (folio.getChapter(i) == chapter) {
+                break;
+            }
+        }
+        if (i == I) {
+            return;
+        }
+
+        modified = isModified();
+
+        replacement = folio.update(i, component);
+        reloaded.add(component);
+        this.apply(replacement);
+        manuscript.journalReload(i, component);
+
+        /*
+         * If the document was as saved before, it still is; what we have is
+         * once again what is on disk.
+         */
+
+        if (!modified) {
+            last = replacement;
+        }
     }
 
     /**
@@ -861,6 +991,12 @@ class PrimaryWindow extends Window
         String filename;
         ResponseType response;
 
+        /*
+         * Don't change the filename out from under a save in progress.
+         */
+
+        saver.finish();
+
         dialog = new FileChooserDialog("Save As...", window, SAVE);
 
         directory = ui.getCurrentFolder();
@@ -900,10 +1036,12 @@ class PrimaryWindow extends Window
     }
 
     /**
-     * Cause the document to be saved. Returns false on error or if cancelled.
+     * Cause the document to be saved. This happens in the background; the
+     * outcome is reported to {@link #reportSaved(Folio) reportSaved()} or
+     * {@link #reportSaveFailed(Throwable) reportSaveFailed()} once it's
+     * done. Throws if the user cancelled choosing a filename.
      */
     void saveDocument() throws SaveCancelledException {
-        MessageDialog dialog;
         String filename;
 
         filename = manuscript.getFilename();
@@ -912,20 +1050,50 @@ class PrimaryWindow extends Window
             requestFilename(); // throws if user cancels
         }
 
-        try {
-            manuscript.saveDocument(folio);
-            dict.saveDocumentList();
-            last = stack.getCurrent();
-        } catch (IllegalStateException ise) {
+        saver.save(manuscript, folio, stack.getCurrent(), dict);
+    }
+
+    /**
+     * A save has completed; the given state is now what's on disk.
+     */
+    void reportSaved(final Folio marker) {
+        last = marker;
+
+        /*
+         * The first save of a new document, or one saved under a new name,
+         * has files to watch that it didn't before.
+         */
+
+        if (!watcher.isWatching(manuscript)) {
+            watcher.watch(manuscript, folio);
+        }
+    }
+
+    /**
+     * A save has failed. Tell the user. Anything other than the problems we
+     * expect from saving is a bug, and is thrown on as it would have been
+     * had the save not been in the background.
+     */
+    void reportSaveFailed(final Throwable problem) {
+        final MessageDialog dialog;
+
+        if (problem instanceof IllegalStateException) {
             dialog = new ErrorMessageDialog(window, "Save failed",
-                    "There is a problem in the structure or data of your document: " + ise.getMessage());
+                    "There is a problem in the structure or data of your document: "
+                            + problem.getMessage());
             dialog.run();
             dialog.hide();
-        } catch (IOException ioe) {
-            dialog = new ErrorMessageDialog(window, "Save failed", ioe.getMessage());
+        } else if (problem instanceof IOException) {
+            dialog = new ErrorMessageDialog(window, "Save failed", problem.getMessage());
             dialog.setSecondaryUseMarkup(true);
             dialog.run();
             dialog.hide();
+        } else if (problem instanceof RuntimeException) {
+            throw (RuntimeException) problem;
+        } else if (problem instanceof Error) {
+            throw (Error) problem;
+        } else {
+            throw new AssertionError(problem);
         }
     }
 
@@ -952,6 +1120,8 @@ class PrimaryWindow extends Window
         final ResponseType response;
         final Button discard, cancel, ok;
 
+        saver.finish();
+
         if (!isModified()) {
             return;
         }
@@ -990,6 +1160,16 @@ class PrimaryWindow extends Window
 
         if (response == ResponseType.OK) {
             saveDocument();
+            saver.finish();
+
+            /*
+             * If the save failed the user has been told; don't go on to
+             * close the document as if it had worked.
+             */
+
+            if (isModified()) {
+                throw new SaveCancelledException();
+            }
         } else if (response == ResponseType.CLOSE) {
             return;
         } else {
@@ -1031,6 +1211,11 @@ class PrimaryWindow extends Window
 
         try {
             attempt = new Manuscript(filename);
+            try {
+                attempt.checkFilename();
+            } catch (RecoveryFileExistsException rfee) {
+                // not checked for here; just looking for a journal
+            }
             folio = attempt.loadDocument();
             manuscript = attempt;
         } catch (Exception e) {
@@ -1074,7 +1259,7 @@ class PrimaryWindow extends Window
         final Context cr;
         final Surface surface;
         final Stylesheet style;
-        final RenderEngine engine;
+        RenderEngine engine;
         final double width, height;
 
         try {
@@ -1100,11 +1285,16 @@ class PrimaryWindow extends Window
             targetname = parentdir + "/" + basename + ".pdf";
 
             /*
-             * Setup the renderer
+             * Setup the renderer. If the preview is showing this Folio with
+             * this Stylesheet then its engine has already done the layout,
+             * and all that's left is to paint the pages onto the PDF.
              */
 
             style = folio.getStylesheet();
-            engine = RenderEngine.createRenderer(style);
+            engine = preview.getRenderer(style);
+            if (engine == null) {
+                engine = RenderEngine.createRenderer(style);
+            }
 
             width = engine.getPageWidth();
             height = engine.getPageHeight();
@@ -26,7 +26,11 @@ import java.io.FileWriter;
 import java.io.IOException;
 import java.text.Collator;
 import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.Locale;
+import java.util.Map;
+import java.util.SortedSet;
 import java.util.TreeSet;
 
 import org.freedesktop.bindings.Environment;
@@ -34,6 +38,7 @@ import org.freedesktop.enchant.Dictionary;
 import org.freedesktop.enchant.Enchant;
 
 import parchment.manuscript.Manuscript;
+import quill.client.Profiler;
 
 import static java.lang.System.arraycopy;
 
@@ -58,10 +63,32 @@ class SpellChecker
      */
     private final String filename;
 
-    private File target;
+    private final File target;
 
     private File tmp;
 
+    /**
+     * The words in the document's word list, kept alongside Enchant's copy
+     * so that the list can be saved without going near Enchant or its file.
+     * null if there is no list.
+     */
+    private TreeSet<String> words;
+
+    /**
+     * How many words' results to remember.
+     */
+    private static final int CAPACITY = 16384;
+
+    /**
+     * Results of checking words, most recently used last. Prose repeats
+     * itself a great deal, so this saves most of the calls out to Enchant
+     * when checking a whole document. A SpellChecker is made afresh when the
+     * language changes, so this only needs to account for words added.
+     * When profiling, the hit rate is ("spell", "cached") against ("spell",
+     * "check") in the report.
+     */
+    private final LinkedHashMap<String, Boolean> cache;
+
     private static final UnixSortComparator COMPARATOR;
 
     static {
@@ -77,6 +104,12 @@ class SpellChecker
 
         filename = manuscript.getDirectory() + "/" + manuscript.getBasename() + ".dic";
 
+        cache = new LinkedHashMap<String, Boolean>(1024, 0.75f, true) {
+            protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+                return size() > CAPACITY;
+            }
+        };
+
         target = new File(filename);
         createTemporaryList();
     }
@@ -111,6 +144,8 @@ class SpellChecker
         }
 
         try {
+            words = new TreeSet<String>(COMPARATOR);
+
             reader = new FileReader(target);
             in = new BufferedReader(reader);
 
@@ -144,6 +179,7 @@ class SpellChecker
                 }
 
                 out.write(line);
+                words.add(line);
             }
 
             in.close();
@@ -156,6 +192,26 @@ class SpellChecker
     }
 
     boolean check(String word) {
+        final Boolean known;
+        final Profiler.Mark mark;
+        final boolean result;
+
+        known = cache.get(word);
+        if (known != null) {
+            Profiler.count("spell", "cached");
+            return known.booleanValue();
+        }
+
+        mark = Profiler.begin();
+        result = lookup(word);
+        Profiler.end(mark, "spell", "check");
+
+        cache.put(word, Boolean.valueOf(result));
+
+        return result;
+    }
+
+    private boolean lookup(String word) {
         boolean result;
 
         result = false;
@@ -186,6 +242,7 @@ class SpellChecker
         if (dict != null) {
             dict.add(word);
         }
+        forget(word);
     }
 
     /**
@@ -207,7 +264,34 @@ class SpellChecker
             }
         }
 
+        if (words == null) {
+            words = new TreeSet<String>(COMPARATOR);
+        }
+
         list.add(word);
+        words.add(word);
+        forget(word);
+    }
+
+    /**
+     * A word has been added, so any cached result saying it (or, as Enchant
+     * accepts it capitalized, a case variant of it) was misspelled is wrong.
+     * Words only ever become valid, so nothing else is affected.
+     */
+    private void forget(final String word) {
+        final Iterator<Map.Entry<String, Boolean>> iter;
+        Map.Entry<String, Boolean> entry;
+
+        iter = cache.entrySet().iterator();
+        while (iter.hasNext()) {
+            entry = iter.next();
+            if (entry.getValue().booleanValue()) {
+                continue;
+            }
+            if (entry.getKey().equalsIgnoreCase(word)) {
+                iter.remove();
+            }
+        }
     }
 
     boolean isSystemValid() {
@@ -219,42 +303,41 @@ class SpellChecker
     }
 
     /**
-     * Enchant is extraordinarily annoying in that it appends "\nword" instead
-     * of doing "word\n" which means there is never a newline at end of file.
-     * It also doesn't bother to sort the list.
+     * Get a copy of the document's word list, sorted, for passing to
+     * {@link #saveDocumentList(SortedSet) saveDocumentList()}. Call this on
+     * the main loop, as that's where words are added. Returns null if there
+     * is no list.
+     */
+    SortedSet<String> getDocumentList() {
+        if (words == null) {
+            return null;
+        }
+        return new TreeSet<String>(words);
+    }
+
+    /**
+     * Write out the given words as the document's word list. This only
+     * touches the target file, so can be done from the thread saving the
+     * document.
      */
     /*
-     * We therefore read in the entire list, remove the leading newline, sort,
-     * then append a newline.
+     * We don't just copy Enchant's file, as it is extraordinarily annoying
+     * in that it appends "\nword" instead of doing "word\n", which means
+     * there is never a newline at end of file. It also doesn't bother to
+     * sort the list.
      */
-    void saveDocumentList() {
-        FileReader reader;
-        BufferedReader in;
-        FileWriter writer;
-        BufferedWriter out;
-        String line;
-        final TreeSet<String> sorted;
+    void saveDocumentList(final SortedSet<String> sorted) throws IOException {
+        final FileWriter writer;
+        final BufferedWriter out;
 
-        if (!tmp.exists()) {
+        if (sorted == null) {
             return;
         }
-        try {
-            sorted = new TreeSet<String>(COMPARATOR);
-
-            reader = new FileReader(tmp);
-            in = new BufferedReader(reader);
-
-            line = in.readLine();
-            while (line != null) {
-                sorted.add(line);
-                line = in.readLine();
-            }
 
-            in.close();
-
-            writer = new FileWriter(target, false);
-            out = new BufferedWriter(writer);
+        writer = new FileWriter(target, false);
+        out = new BufferedWriter(writer);
 
+        try {
             out.write("# Document word list\n");
 
             for (String word : sorted) {
@@ -264,10 +347,8 @@ class SpellChecker
                 out.write(word);
                 out.write('\n');
             }
-
+        } finally {
             out.close();
-        } catch (IOException ioe) {
-            throw new AssertionError("Can't save document word list");
         }
     }
 
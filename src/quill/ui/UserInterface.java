@@ -104,6 +104,10 @@ public class UserInterface
     public void shutdown() {
         clipboard.store();
 
+        for (PrimaryWindow primary : primaries) {
+            primary.stopJournal();
+        }
+
         Gtk.mainQuit();
     }
 
@@ -20,6 +20,8 @@
 import junit.framework.Test;
 import junit.framework.TestSuite;
 import parchment.manuscript.ValidateFileNaming;
+import parchment.manuscript.ValidateChapterCache;
+import parchment.manuscript.ValidateJournal;
 import parchment.manuscript.ValidateManuscriptLoading;
 import parchment.manuscript.ValidateManuscriptSerializing;
 import parchment.manuscript.ValidateThereAndBackAgain;
@@ -31,6 +33,7 @@ import parchment.quack.ValidateImageConversion;
 import parchment.quack.ValidateListitemConversion;
 import parchment.quack.ValidatePreformattedConversion;
 import parchment.quack.ValidateProperNewlineHandling;
+import parchment.quack.ValidateQuackWriter;
 import parchment.quack.ValidateTextChainToChapterConversion;
 import parchment.render.ValidateStylesheetToRenderSettingsConversion;
 import parchment.render.ValidateTypographySubstitutions;
@@ -83,6 +86,7 @@ public class UnitTests
         suite.addTestSuite(ValidateManuscriptSerializing.class);
         suite.addTestSuite(ValidateManuscriptLoading.class);
         suite.addTestSuite(ValidateTextChainToChapterConversion.class);
+        suite.addTestSuite(ValidateQuackWriter.class);
         suite.addTestSuite(ValidateDataIntegrity.class);
         suite.addTestSuite(ValidateBlockquoteConversion.class);
         suite.addTestSuite(ValidateEndnoteConversion.class);
@@ -94,6 +98,8 @@ public class UnitTests
         suite.addTestSuite(ValidateThereAndBackAgain.class);
         suite.addTestSuite(ValidatePreformattedConversion.class);
         suite.addTestSuite(ValidateFileNaming.class);
+        suite.addTestSuite(ValidateJournal.class);
+        suite.addTestSuite(ValidateChapterCache.class);
         suite.addTestSuite(ValidateWordExtraction.class);
         suite.addTestSuite(ValidateApplyUndoRedo.class);
         suite.addTestSuite(ValidateChangePropagation.class);
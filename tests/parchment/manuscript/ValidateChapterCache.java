@@ -0,0 +1,162 @@
+/*
+ * Quill and Parchment, a WYSIWYN document editor and rendering engine.
+ *
+ * Copyright © 2011 Operational Dynamics Consulting, Pty Ltd
+ *
+ * The code in this file, and the program it is a part of, is made available
+ * to you by its authors as open source software: you can redistribute it
+ * and/or modify it under the terms of the GNU General Public License version
+ * 2 ("GPL") as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GPL for more details.
+ *
+ * You should have received a copy of the GPL along with this program. If not,
+ * see http://www.gnu.org/licenses/. The authors of this program may be
+ * contacted through http://research.operationaldynamics.com/projects/quill/.
+ */
+package parchment.manuscript;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+
+import quill.client.IOTestCase;
+import quill.textbase.Component;
+
+/**
+ * Load a chapter, then load it again from the ChapterCache, and make sure
+ * that changes to the file are noticed.
+ *
+ * @author Andrew Cowie
+ */
+public class ValidateChapterCache extends IOTestCase
+{
+    private Chapter chapter;
+
+    private File source;
+
+    public void setUp() throws Exception {
+        final File dir;
+        final Manuscript manuscript;
+        final InputStream in;
+        final OutputStream out;
+        final byte[] buf;
+        int len;
+
+        dir = new File("tmp/unittests/parchment/cache/");
+        if (dir.exists()) {
+            for (File file : dir.listFiles()) {
+                file.delete();
+            }
+        }
+        ChapterCache.setDirectory(dir);
+
+        ensureDirectory("tmp/unittests/parchment/manuscript/");
+        source = new File("tmp/unittests/parchment/manuscript/ValidateChapterCache.xml");
+
+        in = new FileInputStream("tests/SomeOfEverything.xml");
+        out = new FileOutputStream(source);
+        buf = new byte[4096];
+        while ((len = in.read(buf)) != -1) {
+            out.write(buf, 0, len);
+        }
+        in.close();
+        out.close();
+
+        manuscript = new Manuscript();
+        manuscript.setFilename("tmp/unittests/parchment/manuscript/ValidateChapterCache.parchment");
+        chapter = new Chapter(manuscript);
+        chapter.setFilename("ValidateChapterCache.xml");
+    }
+
+    public void tearDown() {
+        ChapterCache.setDirectory(null);
+    }
+
+    private ChapterCache getCache() {
+        return new ChapterCache(source, source.lastModified(), source.length());
+    }
+
+    private String serialize(final Component component) throws IOException {
+        final ByteArrayOutputStream out;
+
+        out = new ByteArrayOutputStream();
+        chapter.saveDocument(component, out);
+
+        return out.toString("UTF-8");
+    }
+
+    public final void testCacheHit() throws Exception {
+        final Component parsed, cached;
+
+        assertNull(getCache().load());
+
+        parsed = chapter.loadDocument();
+        assertNotNull(getCache().load());
+
+        cached = chapter.loadDocument();
+        assertNotSame(parsed, cached);
+        assertEquals(serialize(parsed), serialize(cached));
+    }
+
+    public final void testCacheMiss() throws Exception {
+        final long modified;
+        final RandomAccessFile file;
+        final Component changed;
+
+        chapter.loadDocument();
+        assertNotNull(getCache().load());
+
+        /*
+         * Touching the file invalidates the entry.
+         */
+
+        modified = source.lastModified();
+        source.setLastModified(modified - 10000);
+        assertNull(getCache().load());
+        source.setLastModified(modified);
+        assertNotNull(getCache().load());
+
+        /*
+         * As does changing the content, even if the size and time are the
+         * same.
+         */
+
+        file = new RandomAccessFile(source, "rw");
+        file.seek(file.length() - 1);
+        file.write(' ');
+        file.close();
+        source.setLastModified(modified);
+        assertNull(getCache().load());
+
+        /*
+         * And the chapter is parsed again and the cache entry replaced.
+         */
+
+        changed = chapter.loadDocument();
+        assertNotNull(changed);
+        assertNotNull(getCache().load());
+    }
+
+    public final void testCorrupt() throws Exception {
+        final File dir;
+        final RandomAccessFile file;
+
+        chapter.loadDocument();
+
+        dir = new File("tmp/unittests/parchment/cache/");
+        file = new RandomAccessFile(dir.listFiles()[0], "rw");
+        file.setLength(file.length() / 2);
+        file.close();
+
+        assertNull(getCache().load());
+        assertNotNull(chapter.loadDocument());
+    }
+}
@@ -19,6 +19,7 @@
 package parchment.manuscript;
 
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 
 import nu.xom.ParsingException;
@@ -165,4 +166,118 @@ public class ValidateFileNaming extends IOTestCase
         assertTrue("Save didn't write the expected .xml file!", dotXml.exists());
         assertTrue("Save didn't write anything to the .xml file!", dotXml.length() > 0);
     }
+
+    /*
+     * Overwrite the file with junk of the same length, then put its
+     * modification time back, so that it looks untouched.
+     */
+    private static void scribble(final File target) throws IOException {
+        final long modified;
+        final byte[] junk;
+        final FileOutputStream out;
+        int i;
+
+        modified = target.lastModified();
+        junk = new byte[(int) target.length()];
+        for (i = 0; i < junk.length; i++) {
+            junk[i] = 'x';
+        }
+
+        out = new FileOutputStream(target);
+        out.write(junk);
+        out.close();
+
+        target.setLastModified(modified);
+    }
+
+    public final void testSaveOnlyChanged() throws IOException, ImproperFilenameException {
+        final Manuscript manuscript;
+        Folio folio;
+        final Chapter chapter;
+        final File dotParchment, dotXml;
+        final String junk;
+
+        manuscript = new Manuscript();
+        folio = manuscript.createDocument();
+
+        dotParchment = new File("tmp/unittests/parchment/format/ValidateFileNaming.parchment");
+        dotXml = new File("tmp/unittests/parchment/format/Chapter1.xml");
+        dotParchment.getParentFile().mkdirs();
+
+        manuscript.setFilename(dotParchment.getPath());
+        manuscript.saveDocument(folio);
+
+        scribble(dotParchment);
+        scribble(dotXml);
+        junk = loadFileIntoString(dotXml.getPath());
+
+        /*
+         * Nothing has changed, so nothing should be written.
+         */
+
+        manuscript.saveDocument(folio);
+        assertEquals(junk, loadFileIntoString(dotXml.getPath()));
+        assertTrue(loadFileIntoString(dotParchment.getPath()).startsWith("xxx"));
+
+        /*
+         * A different Component for the chapter; only it is written.
+         */
+
+        chapter = folio.getChapter(0);
+        folio = new Folio(manuscript, chapter, chapter.createDocument(), folio.getStylesheet(),
+                folio.getMetadata());
+
+        manuscript.saveDocument(folio);
+        assertTrue(loadFileIntoString(dotXml.getPath()).startsWith("<?xml"));
+        assertTrue(loadFileIntoString(dotParchment.getPath()).startsWith("xxx"));
+
+        /*
+         * And asking for everything gets everything.
+         */
+
+        manuscript.saveDocumentCompletely(folio);
+        assertTrue(loadFileIntoString(dotParchment.getPath()).startsWith("<?xml"));
+    }
+
+    public final void testChangedOnDisk() throws IOException, ImproperFilenameException,
+            ValidityException, ParsingException {
+        final Manuscript manuscript;
+        final Folio folio;
+        final Chapter chapter;
+        final File dotXml;
+        final FileOutputStream out;
+
+        manuscript = new Manuscript();
+        folio = manuscript.createDocument();
+
+        dotXml = new File("tmp/unittests/parchment/format/Chapter1.xml");
+        dotXml.getParentFile().mkdirs();
+
+        manuscript.setFilename("tmp/unittests/parchment/format/ValidateFileNaming.parchment");
+        manuscript.saveDocumentCompletely(folio);
+
+        chapter = folio.getChapter(0);
+        assertFalse(chapter.isChangedOnDisk());
+
+        /*
+         * Touched, but the same content.
+         */
+
+        dotXml.setLastModified(dotXml.lastModified() - 10000);
+        assertFalse(chapter.isSaved(folio.getComponent(0)));
+        assertFalse(chapter.isChangedOnDisk());
+        assertTrue(chapter.isSaved(folio.getComponent(0)));
+
+        /*
+         * Actually changed.
+         */
+
+        out = new FileOutputStream(dotXml, true);
+        out.write('\n');
+        out.close();
+        assertTrue(chapter.isChangedOnDisk());
+
+        chapter.loadDocument();
+        assertFalse(chapter.isChangedOnDisk());
+    }
 }
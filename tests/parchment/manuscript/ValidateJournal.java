@@ -0,0 +1,282 @@
+/*
+ * Quill and Parchment, a WYSIWYN document editor and rendering engine.
+ *
+ * Copyright © 2011 Operational Dynamics Consulting, Pty Ltd
+ *
+ * The code in this file, and the program it is a part of, is made available
+ * to you by its authors as open source software: you can redistribute it
+ * and/or modify it under the terms of the GNU General Public License version
+ * 2 ("GPL") as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GPL for more details.
+ *
+ * You should have received a copy of the GPL along with this program. If not,
+ * see http://www.gnu.org/licenses/. The authors of this program may be
+ * contacted through http://research.operationaldynamics.com/projects/quill/.
+ */
+package parchment.manuscript;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import quill.client.IOTestCase;
+import quill.textbase.Common;
+import quill.textbase.Component;
+import quill.textbase.Folio;
+import quill.textbase.NormalSegment;
+import quill.textbase.Segment;
+import quill.textbase.Series;
+import quill.textbase.Special;
+import quill.textbase.TextChain;
+
+import static quill.textbase.Span.createMarker;
+import static quill.textbase.Span.createSpan;
+
+/**
+ * Record changes to a document in a Journal, then replay them onto the
+ * document as it was to get back to where we were.
+ *
+ * @author Andrew Cowie
+ */
+public class ValidateJournal extends IOTestCase
+{
+    private Manuscript manuscript;
+
+    private Folio original;
+
+    private File file;
+
+    public void setUp() throws Exception {
+        ensureDirectory("tmp/unittests/parchment/manuscript/");
+
+        manuscript = new Manuscript();
+        original = manuscript.createDocument();
+        manuscript.setFilename("tmp/unittests/parchment/manuscript/ValidateJournal.parchment");
+        manuscript.saveDocumentCompletely(original);
+
+        file = new File("tmp/unittests/parchment/manuscript/ValidateJournal.parchment.journal");
+        file.delete();
+    }
+
+    private static Folio type(final Folio folio, final int position, final int offset, final String str) {
+        final Component component;
+        final Series series;
+        final Segment segment;
+        final TextChain chain;
+
+        component = folio.getComponent(0);
+        series = component.getSeriesMain();
+        segment = series.getSegment(position);
+
+        chain = new TextChain(segment.getEntire());
+        chain.insert(offset, createSpan(str, null));
+
+        return folio.update(0, component.updateMain(series.update(position,
+                segment.createSimilar(chain.extractAll(), offset, 0, str.length()))));
+    }
+
+    private static Folio delete(final Folio folio, final int position, final int offset, final int wide) {
+        final Component component;
+        final Series series;
+        final Segment segment;
+        final TextChain chain;
+
+        component = folio.getComponent(0);
+        series = component.getSeriesMain();
+        segment = series.getSegment(position);
+
+        chain = new TextChain(segment.getEntire());
+        chain.delete(offset, wide);
+
+        return folio.update(0, component.updateMain(series.update(position,
+                segment.createSimilar(chain.extractAll(), offset, wide, 0))));
+    }
+
+    private static Folio format(final Folio folio, final int position, final int offset, final int wide) {
+        final Component component;
+        final Series series;
+        final Segment segment;
+        final TextChain chain;
+
+        component = folio.getComponent(0);
+        series = component.getSeriesMain();
+        segment = series.getSegment(position);
+
+        chain = new TextChain(segment.getEntire());
+        chain.format(offset, wide, Common.BOLD);
+
+        return folio.update(0, component.updateMain(series.update(position,
+                segment.createSimilar(chain.extractAll(), offset, wide, wide))));
+    }
+
+    private static Folio insert(final Folio folio, final int position) {
+        final Component component;
+        final Series series;
+        final TextChain chain;
+
+        component = folio.getComponent(0);
+        series = component.getSeriesMain();
+
+        chain = new TextChain();
+        chain.append(createSpan("Italic ", Common.ITALICS));
+        chain.append(createSpan("and a note", null));
+        chain.append(createMarker("1", Special.NOTE));
+        chain.append(createSpan(" été 𝐀", null));
+
+        return folio.update(0, component.updateMain(series.insert(position,
+                new NormalSegment(chain.extractAll()))));
+    }
+
+    private static String serialize(final Folio folio) throws IOException {
+        final ByteArrayOutputStream out;
+
+        out = new ByteArrayOutputStream();
+        folio.getChapter(0).saveDocument(folio.getComponent(0), out);
+
+        return out.toString("UTF-8") + folio.getMetadata().getDocumentTitle();
+    }
+
+    public final void testReplay() throws IOException {
+        final Journal journal;
+        Folio folio, undone;
+        final Folio replayed;
+
+        journal = new Journal(file);
+        journal.start(original);
+
+        folio = type(original, 0, 0, "Title");
+        journal.record(folio);
+        folio = type(folio, 1, 0, "Hello world");
+        journal.record(folio);
+        folio = type(folio, 1, 5, ", big");
+        journal.record(folio);
+        folio = insert(folio, 2);
+        journal.record(folio);
+        folio = format(folio, 1, 0, 5);
+        journal.record(folio);
+        folio = folio.update(folio.getMetadata().changeDocumentTitle("Journalled"));
+        journal.record(folio);
+
+        /*
+         * Undo and redo leave the recorded offsets describing some other
+         * change.
+         */
+
+        undone = folio;
+        folio = delete(folio, 1, 3, 4);
+        journal.record(folio);
+        journal.record(undone);
+        journal.record(folio);
+
+        journal.flush();
+        assertTrue(file.length() > 0);
+
+        replayed = Journal.replay(file, original);
+        assertNotSame(original, replayed);
+        assertEquals(serialize(folio), serialize(replayed));
+
+        journal.close();
+        assertFalse(file.exists());
+    }
+
+    public final void testIncompleteRecord() throws IOException {
+        final Journal journal;
+        Folio folio;
+        final FileOutputStream out;
+
+        journal = new Journal(file);
+        journal.start(original);
+
+        folio = type(original, 1, 0, "Hello");
+        journal.record(folio);
+        journal.flush();
+
+        out = new FileOutputStream(file, true);
+        out.write(new byte[] {
+            0, 0, 0, 100, 1, 2
+        });
+        out.close();
+
+        assertEquals(serialize(folio), serialize(Journal.replay(file, original)));
+
+        journal.close();
+    }
+
+    public final void testReset() throws IOException {
+        final Journal journal;
+        Folio folio;
+
+        journal = new Journal(file);
+        journal.start(original);
+
+        folio = type(original, 1, 0, "Hello");
+        journal.record(folio);
+
+        journal.reset(original, file);
+        journal.flush();
+        assertEquals(serialize(folio), serialize(Journal.replay(file, original)));
+
+        journal.reset(folio, file);
+        journal.flush();
+        assertSame(original, Journal.replay(file, original));
+
+        journal.close();
+    }
+
+    public final void testReload() throws IOException {
+        final Journal journal;
+        final Component component;
+        final Folio loaded;
+        Folio folio;
+
+        journal = new Journal(file);
+        journal.start(original);
+
+        folio = type(original, 1, 0, "Hello");
+        journal.record(folio);
+
+        /*
+         * Something else changes the chapter file, and it is loaded again.
+         * The journal must carry on from there, not be thrown away for being
+         * older than the file.
+         */
+
+        component = type(original, 0, 0, "Elsewhere").getComponent(0);
+        new File(original.getChapter(0).getFilename()).setLastModified(System.currentTimeMillis());
+
+        folio = folio.update(0, component);
+        journal.record(folio);
+        journal.reload(0, component);
+
+        folio = type(folio, 1, 0, "Again");
+        journal.record(folio);
+        journal.flush();
+
+        loaded = original.update(0, component);
+        assertEquals(serialize(folio), serialize(Journal.replay(file, loaded)));
+
+        journal.close();
+    }
+
+    public final void testStale() throws IOException {
+        final Journal journal;
+        final Folio folio;
+
+        journal = new Journal(file);
+        journal.start(original);
+
+        folio = type(original, 1, 0, "Hello");
+        journal.record(folio);
+        journal.flush();
+
+        new File(original.getChapter(0).getFilename()).setLastModified(System.currentTimeMillis() + 60000);
+
+        assertSame(original, Journal.replay(file, original));
+
+        journal.close();
+    }
+}
@@ -0,0 +1,196 @@
+/*
+ * Quill and Parchment, a WYSIWYN document editor and rendering engine.
+ *
+ * Copyright © 2011 Operational Dynamics Consulting, Pty Ltd
+ *
+ * The code in this file, and the program it is a part of, is made available
+ * to you by its authors as open source software: you can redistribute it
+ * and/or modify it under the terms of the GNU General Public License version
+ * 2 ("GPL") as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GPL for more details.
+ *
+ * You should have received a copy of the GPL along with this program. If not,
+ * see http://www.gnu.org/licenses/. The authors of this program may be
+ * contacted through http://research.operationaldynamics.com/projects/quill/.
+ */
+package parchment.quack;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import parchment.manuscript.Chapter;
+import parchment.manuscript.Manuscript;
+import quill.client.IOTestCase;
+import quill.textbase.AttributionSegment;
+import quill.textbase.ChapterSegment;
+import quill.textbase.Common;
+import quill.textbase.Component;
+import quill.textbase.Extract;
+import quill.textbase.HeadingSegment;
+import quill.textbase.ImageSegment;
+import quill.textbase.ListitemSegment;
+import quill.textbase.Markup;
+import quill.textbase.NormalSegment;
+import quill.textbase.PoeticSegment;
+import quill.textbase.PreformatSegment;
+import quill.textbase.QuoteSegment;
+import quill.textbase.Segment;
+import quill.textbase.Series;
+import quill.textbase.Special;
+import quill.textbase.SpecialSegment;
+import quill.textbase.TextChain;
+
+import static quill.textbase.Span.createSpan;
+
+/**
+ * The streaming QuackWriter must produce exactly the same bytes as building
+ * a tree with QuackConverter and serializing it.
+ *
+ * @author Andrew Cowie
+ */
+public class ValidateQuackWriter extends IOTestCase
+{
+    private static byte[] convert(final List<Segment> segments) throws IOException {
+        final QuackConverter converter;
+        final ByteArrayOutputStream out;
+
+        converter = new QuackConverter();
+        for (Segment segment : segments) {
+            converter.append(segment);
+        }
+
+        out = new ByteArrayOutputStream();
+        converter.writeChapter(out);
+
+        return out.toByteArray();
+    }
+
+    private static byte[] write(final List<Segment> segments) throws IOException {
+        final QuackWriter writer;
+        final ByteArrayOutputStream out;
+
+        out = new ByteArrayOutputStream();
+
+        writer = new QuackWriter(out);
+        for (Segment segment : segments) {
+            writer.append(segment);
+        }
+        writer.finish();
+
+        return out.toByteArray();
+    }
+
+    private static void compare(final List<Segment> segments) throws IOException {
+        final String expected, actual;
+
+        expected = new String(convert(segments), "UTF-8");
+        actual = new String(write(segments), "UTF-8");
+
+        assertEquals(expected, actual);
+    }
+
+    private static void addSeries(final List<Segment> segments, final Series series) {
+        int i;
+
+        for (i = 0; i < series.size(); i++) {
+            segments.add(series.getSegment(i));
+        }
+    }
+
+    private static void compareDocument(final String directory, final String filename) throws Exception {
+        final Manuscript manuscript;
+        final Chapter chapter;
+        final Component component;
+        final List<Segment> segments;
+
+        manuscript = new Manuscript();
+        manuscript.setFilename(directory + "/ValidateQuackWriter.parchment"); // junk
+
+        chapter = new Chapter(manuscript);
+        chapter.setFilename(filename);
+        component = chapter.loadDocument();
+
+        segments = new ArrayList<Segment>();
+        addSeries(segments, component.getSeriesMain());
+        addSeries(segments, component.getSeriesEndnotes());
+        addSeries(segments, component.getSeriesReferences());
+
+        compare(segments);
+    }
+
+    public final void testReferenceDocuments() throws Exception {
+        final String[] filenames;
+
+        filenames = new String[] {
+            "Blockquote.xml",
+            "BulletListitems.xml",
+            "Citation.xml",
+            "ContinuousMarkup.xml",
+            "Endnote.xml",
+            "EndnoteWrappingBug.xml",
+            "HelloWorld.xml",
+            "ImageWithCaption.xml",
+            "ImageWithoutCaption.xml",
+            "Manynotes.xml",
+            "OrdinalListitems.xml",
+            "QuoteWithNoteWrappingBug.xml",
+            "ReallyLongInlineLeadingBlock.xml",
+            "Specials.xml",
+            "TwoBlocksMarkup.xml",
+            "WhitespaceBetweenConsequtiveMarkup.xml"
+        };
+
+        for (String filename : filenames) {
+            compareDocument("tests/parchment/quack", filename);
+        }
+
+        compareDocument("xml", "Example.xml");
+    }
+
+    private static Extract extract(final Object... pieces) {
+        final TextChain chain;
+        int i;
+
+        chain = new TextChain();
+
+        for (i = 0; i < pieces.length; i += 2) {
+            chain.append(createSpan((String) pieces[i], (Markup) pieces[i + 1]));
+        }
+
+        return chain.extractAll();
+    }
+
+    public final void testAwkwardSegments() throws IOException {
+        final List<Segment> segments;
+
+        segments = new ArrayList<Segment>();
+
+        segments.add(new ChapterSegment(extract("Fish & Chips <at> the \"Pier\"", null), "7"));
+        segments.add(new NormalSegment(extract("A paragraph long enough that it will most certainly "
+                + "have to be wrapped, with an ", null, "inline that crosses the boundary", Common.ITALICS,
+                " and an ampersand & and a less than < near the end of the line.", null)));
+        segments.add(new NormalSegment(extract("Italics running over\ninto the next", Common.ITALICS,
+                " paragraph\n", null)));
+        segments.add(new NormalSegment(Extract.create()));
+        segments.add(new HeadingSegment(extract("Carriage\rreturn", Common.BOLD)));
+        segments.add(new PreformatSegment(extract("public static void main(String[] args) {\n", null,
+                "    System.out.println(\"Hello & goodbye\");", Common.LITERAL, "\n}", null)));
+        segments.add(new PoeticSegment(extract("Roses are red,\n  violets are blue", null)));
+        segments.add(new QuoteSegment(extract("One quote.\nAnother quote with a note", null, "1",
+                Special.NOTE, " after it.", null)));
+        segments.add(new AttributionSegment(extract("Someone", Common.TITLE)));
+        segments.add(new ListitemSegment(extract("First\nSecond", null), "1."));
+        segments.add(new ImageSegment(Extract.create(), "images/Picture.png"));
+        segments.add(new ImageSegment(extract("Caption with a ", null, "cite", Special.CITE), "b.png"));
+        segments.add(new SpecialSegment("endnotes"));
+        segments.add(new NormalSegment(extract("Straddling", Common.BOLD)));
+        segments.add(new NormalSegment(extract("segments", Common.BOLD, " été 𝐀", null)));
+
+        compare(segments);
+    }
+}
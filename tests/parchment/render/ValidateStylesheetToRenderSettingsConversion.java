@@ -18,7 +18,6 @@
  */
 package parchment.render;
 
-import org.gnome.gtk.PaperSize;
 import org.gnome.pango.Style;
 import org.gnome.pango.Weight;
 
@@ -70,7 +69,8 @@ public class ValidateStylesheetToRenderSettingsConversion extends GraphicalTestC
         style = new Stylesheet();
         settings = new RenderSettings(style);
 
-        assertEquals(PaperSize.A4, settings.getPaper());
+        assertEquals(595.28, settings.getPaperWidth(), 0.01);
+        assertEquals(841.89, settings.getPaperHeight(), 0.01);
 
         assertEquals(42.52, settings.getMarginTop(), 0.01);
         assertEquals(56.69, settings.getMarginLeft(), 0.01);
@@ -18,6 +18,9 @@
  */
 package parchment.render;
 
+import quill.textbase.Common;
+import quill.textbase.Span;
+import quill.textbase.Special;
 import quill.ui.GraphicalTestCase;
 
 import static parchment.render.LibertineTypography.toSmallCaps;
@@ -60,6 +63,118 @@ public class ValidateTypographySubstitutions extends GraphicalTestCase
         assertEquals('', toSmallCase('7'));
     }
 
+    private static String translate(SmartTypography typography, Span[] spans) {
+        typography.reset(false);
+
+        for (Span span : spans) {
+            typography.append(span);
+        }
+
+        return typography.getText();
+    }
+
+    public final void testSmartQuotes() {
+        final SmartTypography typography;
+
+        typography = new SmartTypography();
+
+        assertEquals("“Hello,” she said.", translate(typography, new Span[] {
+            Span.createSpan("\"Hello,\" she said.", null)
+        }));
+
+        assertEquals("There any ’round here? Don’t know.", translate(typography, new Span[] {
+            Span.createSpan("There any 'round here? Don't know.", null)
+        }));
+
+        /*
+         * The state carries across Span boundaries.
+         */
+
+        assertEquals("said “Wow”", translate(typography, new Span[] {
+            Span.createSpan("said ", null),
+            Span.createSpan('"', null),
+            Span.createSpan("Wow", Common.ITALICS),
+            Span.createSpan('"', null)
+        }));
+    }
+
+    public final void testEmDash() {
+        final SmartTypography typography;
+
+        typography = new SmartTypography();
+
+        assertEquals("this \u2014 that", translate(typography, new Span[] {
+            Span.createSpan("this - that", null)
+        }));
+        assertEquals("this \u2014 that", translate(typography, new Span[] {
+            Span.createSpan("this ", null),
+            Span.createSpan('-', null),
+            Span.createSpan(" that", null)
+        }));
+        assertEquals("well-known - ", translate(typography, new Span[] {
+            Span.createSpan("well-known - ", Common.LITERAL)
+        }));
+    }
+
+    public final void testCodeAndAcronyms() {
+        final SmartTypography typography;
+        final int width;
+
+        typography = new SmartTypography();
+
+        typography.reset(false);
+        width = typography.append(Span.createSpan("f(x) \"s\"", Common.LITERAL));
+        assertEquals("f\u2060(x) \"s\"", typography.getText());
+        assertEquals(9, width);
+        assertEquals(8, typography.getOriginalWidth());
+
+        assertEquals("\ue055\ue05f\ue056\ue021 ok", translate(typography, new Span[] {
+            Span.createSpan("EOF1", Common.ACRONYM),
+            Span.createSpan(" ok", null)
+        }));
+
+        typography.reset(true);
+        typography.append(Span.createSpan("a[0] = 'x';", null));
+        assertEquals("a\u2060[0] = 'x';", typography.getText());
+    }
+
+    public final void testOffsetMapping() {
+        final SmartTypography typography;
+
+        typography = new SmartTypography();
+
+        /*
+         * Original: "ab" "☢" "cd(e" where the marker displays as "12" and
+         * the code gets a word joiner before the bracket.
+         */
+
+        typography.reset(false);
+        typography.append(Span.createSpan("ab", null));
+        typography.append(Span.createMarker("12", Special.NOTE));
+        typography.append(Span.createSpan("cd(e", Common.LITERAL));
+
+        assertEquals("ab12cd\u2060(e", typography.getText());
+        assertEquals(7, typography.getOriginalWidth());
+        assertEquals(9, typography.getRenderedWidth());
+
+        assertEquals(0, typography.toOriginal(0));
+        assertEquals(1, typography.toOriginal(1));
+        assertEquals(2, typography.toOriginal(2));
+        assertEquals(2, typography.toOriginal(3));
+        assertEquals(3, typography.toOriginal(4));
+        assertEquals(4, typography.toOriginal(5));
+        assertEquals(5, typography.toOriginal(6));
+        assertEquals(5, typography.toOriginal(7));
+        assertEquals(6, typography.toOriginal(8));
+        assertEquals(7, typography.toOriginal(9));
+
+        assertEquals(0, typography.toRendered(0));
+        assertEquals(2, typography.toRendered(2));
+        assertEquals(4, typography.toRendered(3));
+        assertEquals(7, typography.toRendered(5));
+        assertEquals(9, typography.toRendered(7));
+    }
+
     private static void diagnose(int expected, int actual) {
         StringBuilder buf;
 
@@ -108,4 +108,101 @@ public class ValidateSpanOperations extends TestCase
         assertFalse(c1.equals(s1));
         assertFalse(s1.equals(c1));
     }
+
+    public final void testArenaSpans() {
+        final TextArena arena;
+        final Span s, l;
+        Span t, c, u;
+        final StringBuilder str;
+        int i;
+
+        arena = new TextArena();
+
+        s = arena.createSpan("<Hello\nWorld>", 1, 12, true, Common.ITALICS);
+        assertTrue(s instanceof StringSpan);
+        assertEquals("Hello World", s.getText());
+        assertEquals(11, s.getWidth());
+        assertSame(Common.ITALICS, s.getMarkup());
+
+        t = arena.createSpan("Hello\nWorld", 0, 11, false, null);
+        assertEquals("Hello\nWorld", t.getText());
+        assertEquals("Hello World", s.getText());
+
+        /*
+         * Views of views
+         */
+
+        u = s.split(6, 11);
+        assertTrue(u instanceof StringSpan);
+        assertEquals("World", u.getText());
+        assertEquals('r', u.getChar(2));
+        assertEquals("orl", u.split(1, 4).getText());
+        assertTrue(u.split(2, 3) instanceof CharacterSpan);
+        assertEquals(createSpan("World", Common.ITALICS), u);
+
+        c = arena.createSpan("abc", 1, 2, false, null);
+        assertTrue(c instanceof CharacterSpan);
+        assertEquals("b", c.getText());
+
+        c = arena.createSpan("\n", 0, 1, true, null);
+        assertEquals(" ", c.getText());
+
+        u = arena.createSpan("A \ud835\udc00 b", 0, 6, false, null);
+        assertTrue(u instanceof UnicodeSpan);
+        assertEquals(5, u.getWidth());
+
+        /*
+         * Longer than a block, and enough to span several.
+         */
+
+        str = new StringBuilder();
+        for (i = 0; i < 2000; i++) {
+            str.append("Lorem ipsum ");
+        }
+        l = arena.createSpan(str.toString(), 0, str.length(), false, null);
+        assertEquals(str.toString(), l.getText());
+
+        for (i = 0; i < 2000; i++) {
+            t = arena.createSpan(str.toString(), i, i + 12, false, null);
+            assertEquals(str.substring(i, i + 12), t.getText());
+        }
+        assertEquals("Hello World", s.getText());
+    }
+
+    public final void testSpanChars() {
+        final TextArena arena;
+        final Span typed, loaded, other, unicode;
+        final char[] buf;
+
+        arena = new TextArena();
+
+        typed = createSpan("Hello", null);
+        loaded = arena.createSpan("<Hello>", 1, 6, false, null);
+        other = arena.createSpan("<Hellp>", 1, 6, false, null);
+
+        assertTrue(typed instanceof StringSpan);
+        assertTrue(loaded instanceof StringSpan);
+
+        /*
+         * Text that was typed isn't copied.
+         */
+
+        assertSame(typed.getText(), typed.getText());
+
+        assertEquals(typed, loaded);
+        assertEquals(loaded, typed);
+        assertFalse(loaded.equals(other));
+        assertFalse(createSpan("Hell", null).equals(loaded));
+
+        buf = new char[8];
+        assertEquals(5, loaded.getTextLength());
+        loaded.getChars(buf, 1);
+        assertEquals("Hello", new String(buf, 1, 5));
+
+        unicode = createSpan("\ud835\udc00", null);
+        assertEquals(1, unicode.getWidth());
+        assertEquals(2, unicode.getTextLength());
+        unicode.getChars(buf, 0);
+        assertEquals("\ud835\udc00", new String(buf, 0, 2));
+    }
 }